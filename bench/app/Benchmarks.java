@@ -0,0 +1,71 @@
+package app;
+
+import cgu.WeekDay;
+import notify.Result;
+
+import java.io.ByteArrayInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The benchmarks of the hot path: classifying the response, building the request body, counting the
+ * results and parsing the week day. Run <tt>bench/run.sh</tt>, optionally with the names of the groups
+ * to run: <tt>result</tt>, <tt>body</tt>, <tt>counter</tt> and <tt>weekday</tt>.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (selected(args, "result")) result();
+        if (selected(args, "body")) body();
+        if (selected(args, "counter")) counter();
+        if (selected(args, "weekday")) weekDay();
+    }
+
+    private static boolean selected(String[] args, String group) {
+        if (args.length == 0) return true;
+        for (String arg : args) {
+            if (arg.equals(group)) return true;
+        }
+        return false;
+    }
+
+    private static void result() throws Exception {
+        for (Result result : Result.values()) {
+            final byte[] page = Pages.of(result);
+            final ResultClassifier classifier = new ResultClassifier();
+            Harness.run("classify " + result.name(), () -> classifier.classify(new ByteArrayInputStream
+                    (page)));
+            Harness.run("getResult " + result.name(), () -> Request.getResult(new ByteArrayInputStream
+                    (page)));
+        }
+    }
+
+    private static void body() throws Exception {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("__EVENTTARGET", "");
+        fields.put("__EVENTARGUMENT", "");
+        fields.put("__VIEWSTATE", Pages.viewState(12 * 1024));
+        fields.put("__VIEWSTATEGENERATOR", "C2962417");
+        fields.put("_ctl1:termsList", "45");
+        fields.put("_ctl1:departmentsList", "-1");
+        fields.put("_ctl1:courseID", "");
+        Harness.run("encodeBody", () -> Request.encodeBody(fields, "1234"));
+    }
+
+    private static void counter() throws Exception {
+        final Counter counter = new Counter();
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Harness.run("Counter.add", threads, () -> counter.add(Result.FULL));
+        }
+    }
+
+    private static void weekDay() throws Exception {
+        final String[] cells = {"Mon 3~4", "Wed 5~6", "Sat 1~2", "---"};
+        for (final String cell : cells) {
+            Harness.run("WeekDay.parse " + cell, () -> WeekDay.parse(cell));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package app;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A tiny benchmark runner. Each benchmark is warmed up first so that it is JIT-compiled, then measured
+ * for a fixed time on a given count of threads. The clock is read once every {@link #BATCH} calls, so
+ * reading it does not count in the time of a fast body. <tt>bench/run.sh</tt> runs each group of
+ * benchmarks in a new JVM, so the call of the body only sees the bodies of one group.
+ */
+final class Harness {
+
+    /**
+     * A benchmark body. It returns a value so that the JIT cannot remove the work.
+     */
+    interface Body {
+        Object run() throws Exception;
+    }
+
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASURE_NANOS = 3_000_000_000L;
+    /**
+     * The count of calls of the body between two reads of the clock.
+     */
+    private static final int BATCH = 1024;
+
+    /**
+     * The results are written here so that they are never dead code.
+     */
+    static volatile Object sink;
+
+    private Harness() {
+    }
+
+    /**
+     * Run a benchmark on one thread and print its result.
+     * @param name name of the benchmark
+     * @param body the benchmark body
+     */
+    static void run(String name, Body body) throws Exception {
+        run(name, 1, body);
+    }
+
+    /**
+     * Run a benchmark and print its result.
+     * @param name    name of the benchmark
+     * @param threads count of threads running the body at the same time
+     * @param body    the benchmark body
+     */
+    static void run(String name, int threads, Body body) throws Exception {
+        loop(1, WARMUP_NANOS, body);
+        double perSecond = loop(threads, MEASURE_NANOS, body);
+        System.out.printf("%-40s %3d threads %14.0f ops/s %10.1f ns/op%n", name, threads, perSecond,
+                threads * 1e9 / perSecond);
+    }
+
+    /**
+     * Run the body on the threads for about the given time.
+     * @return the count of calls per second of all of the threads, each by the time it really ran
+     */
+    private static double loop(int threads, long nanos, Body body) throws Exception {
+        final double[] rates = new double[threads];
+        final Exception[] error = new Exception[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    long end = begin + nanos;
+                    long now;
+                    long n = 0;
+                    Object last = null;
+                    do {
+                        for (int i = 0; i < BATCH; i++) last = body.run();
+                        n += BATCH;
+                    } while ((now = System.nanoTime()) < end);
+                    sink = last;
+                    rates[index] = n * 1e9 / (now - begin);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        double total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += rates[t];
+        }
+        if (error[0] != null) throw error[0];
+        return total;
+    }
+}
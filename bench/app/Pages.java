@@ -0,0 +1,85 @@
+package app;
+
+import notify.Result;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Recorded-like response pages of the enrolling request, one for each {@link Result}. The pages have the
+ * same shape as the real ones: a large <tt>__VIEWSTATE</tt>, the course grid, the result span and the
+ * markup after it.
+ */
+final class Pages {
+
+    private Pages() {
+    }
+
+    /**
+     * Get the page of a result. <tt>FAIL</tt> gets a page without the result span and <tt>EXPIRED</tt>
+     * gets the login page.
+     * @param result the result
+     * @return the UTF-8 bytes of the page
+     */
+    static byte[] of(Result result) {
+        if (result == Result.EXPIRED) {
+            return ("<html><head><title>Login</title></head><body>\r\n<form method=\"post\" action=\"" +
+                    "/portal/Login.aspx\">\r\n<input type=\"text\" name=\"Ecom_User_ID\" />\r\n" +
+                    "<input type=\"password\" name=\"Ecom_Password\" />\r\n</form>\r\n</body></html>")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(96 * 1024);
+        sb.append("<html>\r\n<head><title>長庚大學校務資訊系統</title></head>\r\n<body>\r\n");
+        sb.append("<form name=\"Form1\" method=\"post\" action=\"DesktopDefault.aspx?tabindex=1&amp;tabid=61\"")
+                .append(" id=\"Form1\">\r\n<input type=\"hidden\" name=\"__VIEWSTATE\" value=\"")
+                .append(viewState(12 * 1024)).append("\" />\r\n");
+        grid(sb, 20);
+        if (result != Result.FAIL) {
+            sb.append("<span id=\"_ctl2_result\" style=\"color:Red;\">").append(message(result))
+                    .append("</span>\r\n");
+        }
+        grid(sb, 60);
+        sb.append("</form>\r\n</body>\r\n</html>\r\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String message(Result result) {
+        switch (result) {
+        case SUCCESS:
+            return "你已經加選本科目";
+        case CONFLICT:
+            return "與已選課程衝堂";
+        case FULL:
+            return "本課程已達人數上限";
+        case TIME_INCORRECT:
+            return "目前未開放選課";
+        case REPEAT:
+            return "不可重複修讀已修畢之科目";
+        case GRADE_TOO_LOW:
+            return "學生所屬年級必須等於或高於課程開設年級";
+        default:
+            return "系統忙碌中";
+        }
+    }
+
+    /**
+     * Get a random <tt>__VIEWSTATE</tt>-like base64 text, which is the same for the same length.
+     * @param length length of the text
+     * @return the text
+     */
+    static String viewState(int length) {
+        //固定種子，每次跑的頁面都一樣
+        return ViewState.random(new Random(length), length);
+    }
+
+    private static void grid(StringBuilder sb, int rows) {
+        sb.append("<table cellspacing=\"0\" rules=\"all\" border=\"1\" id=\"_ctl2_myGrid\">\r\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append("<tr><td nowrap=\"nowrap\" align=\"Center\" valign=\"Middle\">\r\n").append(1000 + i)
+                    .append("<BR></td><td>通識教育中心</td><td>人文藝術</td><td>3</td><td>選修</td>")
+                    .append("<td>課程名稱 ").append(i).append("<br>Course ").append(i).append("</td>")
+                    .append("<td>王大明</td><td>60</td><td>Mon 3~4</td></tr>\r\n");
+        }
+        sb.append("</table>\r\n");
+    }
+}
@@ -0,0 +1,15 @@
+#!/bin/sh
+# Compile the sources and the benchmarks against lib/ and run them, each group in a new JVM so that the
+# profile of one group does not slow down the next.
+# Usage: bench/run.sh [result] [body] [counter] [weekday]
+set -e
+cd "$(dirname "$0")/.."
+out=build/bench
+rm -rf "$out"
+mkdir -p "$out"
+javac -encoding UTF-8 -nowarn -d "$out" -cp "lib/*" $(find src bench -name '*.java')
+groups="$*"
+[ -n "$groups" ] || groups="result body counter weekday"
+for group in $groups; do
+    java -Djava.awt.headless=true -cp "$out:lib/*" app.Benchmarks "$group"
+done
@@ -0,0 +1,51 @@
+package app;
+
+import cgu.Course;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>This class represents a student an {@link Engine} enrolls courses for. Each account has its own
+ * client, which holds the cookies of its login, and its own courses. The worker threads and the
+ * connections of the engine are shared by all of the accounts.</p> <p>The weight decides the share of
+ * the requests of the account when there are many (see {@link FairShare}). An account with weight 2
+ * gets twice as many requests as an account with weight 1, as long as both of them have unfinished
+ * courses.</p>
+ */
+public class Account {
+
+    /**
+     * The name of the account shown in the messages, such as the student ID.
+     */
+    public final String name;
+    /**
+     * The client which has logged in the student system for this account.
+     */
+    public final CguWebClient client;
+    /**
+     * The courses to enroll, never modify it.
+     */
+    public final List<Course> courses;
+    /**
+     * The share of the requests of this account.
+     */
+    public final int weight;
+
+    /**
+     * Create an account.
+     * @param name    the name shown in the messages, such as the student ID
+     * @param client  a client that has logged in the student system
+     * @param courses the courses to enroll
+     * @param weight  the share of the requests, at least 1
+     */
+    public Account(String name, CguWebClient client, List<Course> courses, int weight) {
+        if (courses.isEmpty()) throw new IllegalArgumentException("No course: " + name);
+        if (weight < 1) throw new IllegalArgumentException("weight: " + weight);
+        this.name = name;
+        this.client = client;
+        this.courses = Collections.unmodifiableList(new ArrayList<>(courses));
+        this.weight = weight;
+    }
+}
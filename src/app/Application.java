@@ -10,16 +10,19 @@ import swing.Padding;
 import javax.swing.*;
 import java.awt.*;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * <p>Use this application to enroll the class you want to enroll.</p> <p>This class owns a member, a
- * unique {@link Task} object, which connects to CGU's server.
+ * unique {@link Engine} object, which connects to CGU's server. This class only deals with the GUI.</p>
  * @author Parabola
- * @see Task
+ * @see Engine
  * @see Request
  */
 public class Application extends JFrame {
@@ -76,7 +79,16 @@ public class Application extends JFrame {
                             if (username == null) area.append("帳號或密碼錯誤。");
                             else {
                                 area.append("已登入【" + username + "】");
+                                client.setCatalog(CATALOG, Catalog.DEFAULT_TTL);
+                                //目錄過期的話在背景更新，不讓登入等它；更新好之前先用舊的
+                                Catalog catalog = client.getCatalog();
+                                if (catalog.isExpired(Catalog.DEFAULT_TTL)) area.append("課程目錄更新中。");
+                                else area.append("課程目錄共 " + catalog.size() + " 門課。");
                                 logInMode(true);
+                                //趁使用者輸入課程時讓 JIT 編譯解析的程式
+                                if (!WarmUp.isTrained() && WarmUp.train(WarmUp.BUDGET) != 0) {
+                                    area.append("解析預熱完成。");
+                                }
                                 return;
                             }
                         } catch (IOException | LoginFailException e) {
@@ -94,6 +106,7 @@ public class Application extends JFrame {
                 inStuId.setEditable(false);
                 inPswd.setEditable(false);
                 inClzId.setEditable(true);
+                inOpen.setEditable(true);
                 btnRun.setEnabled(true);
                 logged = true;
                 setText("登出");
@@ -105,6 +118,7 @@ public class Application extends JFrame {
                 inStuId.setEditable(true);
                 inPswd.setEditable(true);
                 inClzId.setEditable(false);
+                inOpen.setEditable(false);
                 btnRun.setEnabled(false);
                 setText("登入");
                 System.gc();
@@ -120,131 +134,17 @@ public class Application extends JFrame {
     }
 
     /**
-     * This class is the inner class of {@link Application}. It is the class who does the task to send
-     * requst to CGU's server. Actually, its outer class, <tt>Application</tt>, object deals with the GUI
-     * and this class deals with the real jobs.
+     * This object is used to refresh the counters on the GUI.
      */
-    private class Task {
-
-        /**
-         * This object is used to refresh the {@link #counter}.
-         */
-        private class RefreshCounterTask extends TimerTask {
-            @Override
-            public void run() {
-                counter.refresh();
-            }
-        }
-        /**
-         * The {@link Result} object from the procedure is put into this queue, and {@link #tMessage}
-         * takes them out and cast the results to message and shows on GUI.
-         */
-        private final BlockingQueue<Result> queue = new LinkedBlockingDeque<>();
-        /**
-         * The <b>REALLY REAL</b> object that connects to CGU's server, sends request headers, reads the
-         * response contents and cast them to {@link Result} obejcts.
-         * @see Request
-         */
-        private Request submittion;
-        /**
-         * This thread shows the message on the GUI.
-         * @see #area
-         * @see CounterLabel
-         * @see #counter
-         */
-        private Thread tMessage;
-        /**
-         * A very important flag. If this flag is set to <tt>false</tt>, the task will be shut down, or
-         * ,the <tt>while</tt>loop will breaks. In this application, {@link Application#stop()
-         * Application.stop()} is called to set it to <tt>false</tt>. It is <tt>volatile</tt> so that the
-         * threads can ends ASAP if set to <tt>false</tt>.
-         */
-        private volatile boolean taskFlag;
-        /**
-         * This timer is used to refresh the {@link #counter}.
-         */
-        private Timer timer;
-        /**
-         * The <tt>Runnable</tt> target of {@link #tMessage}.
-         */
-        private final Runnable rMessage = () -> {
-            try {
-                Result result;
-                while (taskFlag) {
-                    result = queue.take();
-                    if (!taskFlag) break;
-                    if (result == Result.SUCCESS || result == Result.CONFLICT || result == Result
-                            .GRADE_TOO_LOW || result == Result.REPEAT) {
-                        taskFlag = false;
-                        new Thread(Application.this::stop).start();
-                        JOptionPane.showMessageDialog(null, result.toString(), "刷課機即將終止", JOptionPane
-                                .INFORMATION_MESSAGE);
-                    }
-                    else if (result == Result.FULL || result == Result.TIME_INCORRECT) counter.full();
-                    else counter.fail();
-                }
-            } catch (InterruptedException e) {
-            }
-        };
-        public Task() {
-        }
-
-        /**
-         * Once this method is called, it starts a new thread and connects to CGU's server and send
-         * requests repeatly (by <tt>while</tt> loop). Call this method twice or three or more times if
-         * higher efficincy is needed. To interrupt the thread, the only way is setting {@link #taskFlag}
-         * to <tt>false</tt> (In this application, {@link Application#stop() Application.stop()} is
-         * called to set it to <tt>false</tt>). After a thread is dead, resetting <tt>taskFlag</tt> to
-         * <tt>true</tt> is useless. Call this method again.
-         */
-        public void execute() {
-            new Thread(() -> {
-                while (taskFlag) {
-                    try {
-                        queue.put(Request.getResult(submittion.submit()));
-                    } catch (InterruptedException e) {
-                    } catch (IOException e) {
-                        try {
-                            queue.put(Result.FAIL);
-                        } catch (InterruptedException neverHappen) { //Never happens
-                        }
-                    }
-                }
-            }).start();
-        }
-
-        /**
-         * Start the task. On the other hand, a <tt>stop</tt> method is not provided bt this class. Call
-         * {@link Application#stop() Application.stop()} instead.
-         * @param client the <tt>CguWebClient</tt> object which provides the students data
-         * @param course the course to enroll
-         */
-        public void start(CguWebClient client, Course course) {
-            try {
-                //啟動刷頻
-                submittion = new Request(client, course);
-                //計數器歸零
-                counter.clear();
-                //初始化訊息監聽器
-                tMessage = new Thread(rMessage);
-                //初始化計數器設置
-                timer = new Timer();
-                //訊息監聽器啟動
-                tMessage.start();
-                //計數器啟動
-                timer.scheduleAtFixedRate(new RefreshCounterTask(), 0, 60);
-                //刷課機啟動
-                taskFlag = true;
-                int nCore = Runtime.getRuntime().availableProcessors();
-                //依該電腦的CPU數量決定所開啟的執行緒數目
-                for (int n = 0; n < nCore; n++) {
-                    execute();
-                }
-                area.append("初始化完成。開始刷課。");
-            } catch (IOException e) {
-                e.printStackTrace();
-                area.append("初始化失敗！");
-            }
+    private class RefreshCounterTask extends TimerTask {
+        @Override
+        public void run() {
+            cnFull.setText(engine.counter.get(Result.FULL) + engine.counter.get(Result.TIME_INCORRECT));
+            cnFail.setText(engine.counter.get(Result.FAIL));
+            Breaker breaker = engine.getBreaker();
+            //斷路器打開時讓使用者知道為什麼沒有在刷
+            if (breaker != null && breaker.getState() != Breaker.State.CLOSED) lbLatency.setText("網路異常，暫停中");
+            else lbLatency.setText(engine.latency.getLiveText());
         }
     }
 
@@ -256,7 +156,7 @@ public class Application extends JFrame {
 
         @Override
         public void click() {
-            if (task.taskFlag) stop();
+            if (engine.isRunning()) stop();
             else start();
         }
     }
@@ -266,28 +166,96 @@ public class Application extends JFrame {
     private static final int IN_HEIGHT = 30;
     private static final int IN_WIDTH = 360;
     private static final int LB_WIDTH = 60;
+    private static final int LATENCY_WIDTH = 260;
     private static final int PADDING = 6;
+    /**
+     * The file of the catalog of courses, which can be set by <tt>-Denroller.catalog=FILE</tt>.
+     */
+    private static final Path CATALOG = Paths.get(System.getProperty("enroller.catalog", Catalog
+            .DEFAULT_FILE.toString()));
+    /**
+     * The file every message is also written to, which can be set by <tt>-Denroller.log=FILE</tt>. No
+     * file is written by default.
+     */
+    private static final String LOG = System.getProperty("enroller.log");
+    /**
+     * The max size of the log file in bytes before it is rolled.
+     */
+    private static final long LOG_LIMIT = 4 * 1024 * 1024;
+    /**
+     * The directory of the {@link Journal} of the requests, which can be set by
+     * <tt>-Denroller.journal=DIR</tt>. No journal is written by default.
+     */
+    private static final String JOURNAL = System.getProperty("enroller.journal");
+    /**
+     * The port on <tt>127.0.0.1</tt> the {@link Metrics} are served on, which can be set by
+     * <tt>-Denroller.metrics=PORT</tt>. No metrics are served by default.
+     */
+    private static final Integer METRICS = Integer.getInteger("enroller.metrics");
     private final Area area = new Area();
     private final JLabel author = new JLabel("作者：雙曲線");
     private final LoginButton btnLogin = new LoginButton("登入");
     private final TaskButton btnRun = new TaskButton("開始刷課");
     private final CounterLabel cnFail = new CounterLabel("錯誤次數");
     private final CounterLabel cnFull = new CounterLabel("嘗試次數");
-    private final Counter counter = new Counter(cnFull, cnFail);
+    private final JLabel lbLatency = new JLabel();
     private final Input inClzId = new Input();
     private final Input inClzName = new Input();
+    private final Input inOpen = new Input();
     private final PasswordInput inPswd = new PasswordInput();
     private final Input inStuId = new Input();
     private final Label lbClzId = new Label("開課序號");
     private final Label lbClzName = new Label("課堂名稱");
+    private final Label lbOpen = new Label("開放時間");
     private final Label lbPswd = new Label("密碼");
     private final Label lbUser = new Label("學號");
-    private final Task task = new Task();
+    /**
+     * The engine who does the real jobs. The max count of requests in flight can be set by
+     * <tt>-Denroller.ceiling=N</tt>.
+     */
+    private final Engine engine = new Engine(Integer.getInteger("enroller.ceiling", Engine
+            .DEFAULT_CEILING), new Engine.Listener() {
+        @Override
+        public void onDone() {
+            new Thread(Application.this::stop).start();
+        }
+
+        @Override
+        public void onFinish(Enrollment enrollment) {
+            area.append(enrollment.course.id + " " + enrollment.course + "：" + enrollment.getResult());
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, enrollment.course + "\n" +
+                    enrollment.getResult(), "刷課結果", JOptionPane.INFORMATION_MESSAGE));
+        }
+
+        @Override
+        public void onMessage(String message) {
+            area.append(message);
+        }
+    });
+    /**
+     * This timer is used to refresh the counters on the GUI.
+     */
+    private Timer timer;
     private CguWebClient client = new CguWebClient();
 
     private Application() {
         super("長庚通識無限刷");
         initSwings();
+        if (JOURNAL != null) engine.setJournal(Paths.get(JOURNAL));
+        if (METRICS != null) {
+            try {
+                new Metrics(engine, METRICS);
+            } catch (IOException e) {
+                area.append("無法開啟監控埠：" + e.getMessage());
+            }
+        }
+        if (LOG != null) {
+            try {
+                area.setSpill(Paths.get(LOG), LOG_LIMIT);
+            } catch (IOException e) {
+                area.append("無法寫入紀錄檔：" + e.getMessage());
+            }
+        }
         showWarningText();
     }
 
@@ -300,8 +268,13 @@ public class Application extends JFrame {
     }
 
     private void initSwings() {
+        lbLatency.setText(engine.latency.getLiveText());
+        lbLatency.setHorizontalAlignment(SwingConstants.RIGHT);
+        lbLatency.setPreferredSize(new Dimension(LATENCY_WIDTH, lbLatency.getPreferredSize().height));
         inClzId.setEditable(false);
         inClzName.setEditable(false);
+        inOpen.setEditable(false);
+        inOpen.setToolTipText("選課開放的時間，例如 12:30 或 2017-09-01 12:30:00。空白表示馬上開始。");
         btnRun.setEnabled(false);
 
         JPanel pnUser = new JPanel(new BorderLayout());
@@ -323,9 +296,13 @@ public class Application extends JFrame {
         JPanel pnClzData = new JPanel(new BorderLayout());
         pnClzData.add(new Padding(0, PADDING, PADDING, PADDING, lbClzName), BorderLayout.CENTER);
         pnClzData.add(new Padding(0, 0, PADDING, PADDING, inClzName), BorderLayout.EAST);
+        JPanel pnClzOpen = new JPanel(new BorderLayout());
+        pnClzOpen.add(new Padding(0, PADDING, PADDING, PADDING, lbOpen), BorderLayout.CENTER);
+        pnClzOpen.add(new Padding(0, 0, PADDING, PADDING, inOpen), BorderLayout.EAST);
         JPanel pnClz = new JPanel(new BorderLayout());
-        pnClz.add(pnClzId, BorderLayout.CENTER);
-        pnClz.add(pnClzData, BorderLayout.SOUTH);
+        pnClz.add(pnClzId, BorderLayout.NORTH);
+        pnClz.add(pnClzData, BorderLayout.CENTER);
+        pnClz.add(pnClzOpen, BorderLayout.SOUTH);
         JPanel pnClzRun = new JPanel(new BorderLayout());
         pnClzRun.add(pnClz, BorderLayout.CENTER);
         pnClzRun.add(new Padding(PADDING, 0, PADDING, PADDING, btnRun), BorderLayout.EAST);
@@ -340,6 +317,7 @@ public class Application extends JFrame {
         JPanel pnCounter = new JPanel(new BorderLayout());
         pnCounter.add(new Padding(0, 20, PADDING, 20, cnFull), BorderLayout.CENTER);
         pnCounter.add(new Padding(0, 20, PADDING, PADDING, cnFail), BorderLayout.EAST);
+        pnCounter.add(new Padding(0, 20, PADDING, 0, lbLatency), BorderLayout.WEST);
         JPanel pnSouth = new JPanel(new BorderLayout());
         pnSouth.add(new Padding(0, PADDING, PADDING, 20, author), BorderLayout.CENTER);
         pnSouth.add(pnCounter, BorderLayout.EAST);
@@ -359,9 +337,12 @@ public class Application extends JFrame {
         area.append();
         area.append("如果你是用長庚的爛宿網的話，要小心刷課的行為可能會讓你的宿網被學校系統封鎖，所以可以的" +
                 "話還是用自己的網路比較好。不知道開課序號的話，到校務資訊系統去查。就算是同樣老師開的同樣的" +
-                "課，星期一班跟星期二班的序號卻是不一樣的，要記得確認要選的課是在星期幾。");
+                "課，星期一班跟星期二班的序號卻是不一樣的，要記得確認要選的課是在星期幾。" +
+                "要同時刷好幾門課的話，開課序號之間用逗號或空白隔開。知道選課開放的時間的話，填在開放時間裡，" +
+                "刷課機會對準學校伺服器的時鐘，在那之前只偶爾送出請求，時間一到就全力刷課。");
         area.append();
-        area.append("當刷課機得到衝堂、重複選修或選課成功的結果之後，刷課系統會自動停止並告知使用者。此外，視窗" +
+        area.append("當一門課得到衝堂、重複選修或選課成功的結果之後，刷課機會告知使用者並繼續刷其他的課，" +
+                "全部的課都有結果之後就會自動停止。此外，視窗" +
                 "下面有兩個指標嘗試次數和錯誤次數。「嘗試」是指當刷課處理器得到「人數已滿」或「尚未" +
                 "開放選課」的結果。「錯誤」是指刷課機執行異常得到無法理解的結果，例如IP被封、連線逾" +
                 "時等等。");
@@ -373,29 +354,60 @@ public class Application extends JFrame {
      * @return <tt>true</tt> if prosedure starts
      */
     private synchronized boolean start() {
-        String courseID = inClzId.getText();
-        if (courseID.length() == 0) return false;
-        final Course course;
-        try {
-            course = client.getCourse(courseID);
-        } catch (IOException e) {
-            area.append("操作異常。");
-            e.printStackTrace();
-            return false;
+        String[] courseIDs = inClzId.getText().trim().split("[,，\\s]+");
+        if (courseIDs[0].length() == 0) return false;
+        final List<Course> courses = new ArrayList<>(courseIDs.length);
+        for (String courseID : courseIDs) {
+            final Course course;
+            try {
+                course = client.getCourse(courseID);
+            } catch (IOException e) {
+                area.append("操作異常。");
+                e.printStackTrace();
+                return false;
+            }
+            if (course == null) {
+                inClzName.setForeground(Color.RED);
+                inClzName.setText("開課序號錯誤：" + courseID);
+                return false;
+            }
+            courses.add(course);
         }
-        if (course == null) {
-            inClzName.setForeground(Color.RED);
-            inClzName.setText("開課序號錯誤");
-            return false;
+
+        long openTime = 0;
+        if (!inOpen.getText().trim().isEmpty()) {
+            try {
+                openTime = ClockSync.parseTime(inOpen.getText());
+            } catch (ParseException e) {
+                inClzName.setForeground(Color.RED);
+                inClzName.setText("開放時間格式錯誤");
+                return false;
+            }
         }
 
         // Start to enrolling process;
         btnLogin.setEnabled(false);
         inClzId.setEditable(false);
+        inOpen.setEditable(false);
         inClzName.setForeground(null);
-        inClzName.setText(course.toString());
+        StringBuilder names = new StringBuilder();
+        for (Course course : courses) {
+            if (names.length() != 0) names.append("、");
+            names.append(course);
+        }
+        inClzName.setText(names.toString());
         btnRun.setText("終止刷課");
-        task.start(client, course);
+        try {
+            engine.start(client, courses, openTime);
+        } catch (IOException e) {
+            e.printStackTrace();
+            area.append("初始化失敗！");
+            stop();
+            return false;
+        }
+        //計數器啟動
+        timer = new Timer();
+        timer.scheduleAtFixedRate(new RefreshCounterTask(), 0, 60);
         return true;
     }
 
@@ -404,16 +416,17 @@ public class Application extends JFrame {
      * @return always <tt>true</tt>
      */
     private synchronized boolean stop() {
-        task.taskFlag = false;
+        engine.stop();
         //終止計數器Timer
-        task.timer.cancel();
-        //清空監聽器訊息
-        task.queue.clear();
+        if (timer != null) timer.cancel();
+        new RefreshCounterTask().run();
         //swing恢復設置
         inClzId.setEditable(true);
+        inOpen.setEditable(true);
         btnLogin.setEnabled(true);
         btnRun.setText("開始刷課");
         area.append("刷課機已停止。");
+        area.append(engine.latency.getSummary());
         //清空記憶體垃圾
         System.gc();
         return true;
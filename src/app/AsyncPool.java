@@ -0,0 +1,240 @@
+package app;
+
+import notify.Result;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.SocketAddressResolver;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>This class sends the requests of {@link Request} without blocking any thread, by Jetty's
+ * asynchronous <tt>HttpClient</tt>. It is the other backend of {@link HttpPool}: a request does not hold
+ * a thread while it is in flight, so the count of requests in flight is not bound by the count of
+ * threads.</p> <p>All of the connections are served by one selector thread. The response is classified
+ * by a {@link ResultClassifier} as its bytes arrive, and the {@link Callback} is called as soon as the
+ * result is known. The classifiers are reused from one response to the next, so a response does not
+ * create an inflater or any buffer. The rest of the page is read and thrown away, so the connection is
+ * kept alive. The decoders of Jetty are removed, so a compressed body is inflated by the classifier
+ * instead.</p> <p>Remember to close the pool if it is not used. Call {@link #close()} method.</p>
+ * @see Engine#setAsync(boolean)
+ */
+public class AsyncPool implements Closeable {
+
+    /**
+     * Receives the result of a request sent by {@link #send(URI, Header[], byte[], Callback)}. It is
+     * called once for each request, from a thread of the pool, so it must not block.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the result of a request is known.
+         * @param result    the result of the request
+         * @param firstByte the time to the response headers in ns, or 0 if there is no response
+         * @param total     the total time in ns
+         * @param status    the HTTP status, or 0 if there is no response
+         * @param bytes     the count of bytes of the body read until the result is known
+         * @param decoded   the count of those bytes after they are inflated, the same as <tt>bytes</tt> if
+         *                  the body is not compressed
+         */
+        void onResult(Result result, long firstByte, long total, int status, long bytes, long decoded);
+    }
+
+    /**
+     * The max count of threads to run the callbacks, besides the selector thread.
+     */
+    private static final int THREADS = 4;
+    /**
+     * The status code IIS answers when the login has timed out.
+     */
+    private static final int LOGIN_TIMEOUT = 440;
+    private static final String FORM = "application/x-www-form-urlencoded";
+
+    private final HttpClient client;
+    /**
+     * The classifiers of the responses which have been read, to be used again. There are at most as many
+     * as the connections, the others are ended.
+     */
+    private final BlockingQueue<ResultClassifier> classifiers;
+    /**
+     * The pinned addresses, by host.
+     */
+    private final Map<String, InetAddress[]> pinned = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    /**
+     * Create a pool and start its threads.
+     * @param size    max count of connections
+     * @param timeout connect and request timeout in ms
+     */
+    public AsyncPool(int size, int timeout) throws IOException {
+        this.timeout = timeout;
+        classifiers = new ArrayBlockingQueue<>(size);
+        QueuedThreadPool executor = new QueuedThreadPool(THREADS + 1, 1);
+        executor.setName("AsyncPool");
+        executor.setDaemon(true);
+        client = new HttpClient(new HttpClientTransportOverHTTP(1), new SslContextFactory());
+        client.setExecutor(executor);
+        client.setMaxConnectionsPerDestination(size);
+        client.setConnectTimeout(timeout);
+        client.setFollowRedirects(false);
+        client.setCookieStore(new HttpCookieStore.Empty());
+        try {
+            client.start();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        //start() 會加回 gzip 解碼器，要在之後才清掉
+        client.getContentDecoderFactories().clear();
+        SocketAddressResolver resolver = client.getSocketAddressResolver();
+        client.setSocketAddressResolver((host, port, promise) -> {
+            InetAddress[] addresses = pinned.get(host);
+            if (addresses == null) {
+                resolver.resolve(host, port, promise);
+                return;
+            }
+            List<InetSocketAddress> list = new ArrayList<>(addresses.length);
+            for (InetAddress address : addresses) list.add(new InetSocketAddress(address, port));
+            promise.succeeded(list);
+        });
+    }
+
+    /**
+     * Stop the pool and abort the requests in flight, whose callbacks get {@link Result#FAIL}. It may be
+     * called from a callback, so the threads are stopped on another thread.
+     */
+    @Override
+    public void close() {
+        new Thread(() -> {
+            try {
+                client.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            ResultClassifier classifier;
+            while ((classifier = classifiers.poll()) != null) classifier.end();
+        }, "AsyncPool").start();
+    }
+
+    /**
+     * Send a <tt>POST</tt>. This method returns at once.
+     * @param uri      the uri
+     * @param headers  the request headers
+     * @param body     the form, URL-encoded. It must not be modified.
+     * @param callback receives the result. It gets {@link Result#EXPIRED} if the server redirects the
+     *                 request or asks for logging in, and {@link Result#FAIL} if the request fails.
+     */
+    void send(URI uri, Header[] headers, byte[] body, Callback callback) {
+        org.eclipse.jetty.client.api.Request request = client.newRequest(uri).method(HttpMethod.POST)
+                .timeout(timeout, TimeUnit.MILLISECONDS).content(new BytesContentProvider(FORM, body));
+        for (Header header : headers) request.header(header.getName(), header.getValue());
+        ResultClassifier classifier = classifiers.poll();
+        Listener listener = new Listener(callback, classifier != null ? classifier : new ResultClassifier());
+        try {
+            request.send(listener);
+        } catch (RuntimeException e) {
+            //The client has been stopped.
+            listener.done(Result.FAIL);
+            listener.release();
+        }
+    }
+
+    /**
+     * Use the given addresses of a host for every new connection to the host from now on.
+     * @param host      the host
+     * @param addresses the addresses, such as the ones pinned by {@link HttpPool#pin(String)}
+     */
+    void pin(String host, InetAddress[] addresses) {
+        pinned.put(host, addresses.clone());
+    }
+
+    /**
+     * Send a <tt>HEAD</tt> request without any cookie, so that a connection is opened before the
+     * requests are sent. This method returns at once.
+     * @param uri      the uri
+     * @param callback receives the HTTP status, or 0 if the request fails
+     */
+    void warm(URI uri, IntConsumer callback) {
+        client.newRequest(uri).method(HttpMethod.HEAD).timeout(timeout, TimeUnit.MILLISECONDS).send(r ->
+                callback.accept(r.isFailed() ? 0 : r.getResponse().getStatus()));
+    }
+
+    /**
+     * Classifies a response as it arrives. Only one thread calls it at a time.
+     */
+    private final class Listener extends Response.Listener.Adapter {
+
+        private final long begin = System.nanoTime();
+        private final Callback callback;
+        private final ResultClassifier classifier;
+        private long firstByte;
+        private int status;
+        private boolean done;
+        private boolean released;
+
+        private Listener(Callback callback, ResultClassifier classifier) {
+            this.callback = callback;
+            this.classifier = classifier;
+        }
+
+        private void done(Result result) {
+            if (done) return;
+            done = true;
+            callback.onResult(result, firstByte, System.nanoTime() - begin, status, classifier.getBytes(),
+                    classifier.getDecodedBytes());
+        }
+
+        /**
+         * Give the classifier back to the pool once the response is read, or end it if the pool has
+         * enough.
+         */
+        private void release() {
+            if (released) return;
+            released = true;
+            classifier.reset();
+            if (!classifiers.offer(classifier)) classifier.end();
+        }
+
+        @Override
+        public void onComplete(org.eclipse.jetty.client.api.Result result) {
+            done(result.isFailed() ? Result.FAIL : classifier.finish());
+            release();
+        }
+
+        @Override
+        public void onContent(Response response, ByteBuffer content) {
+            if (!done && classifier.feed(content)) done(classifier.finish());
+        }
+
+        @Override
+        public void onHeaders(Response response) {
+            firstByte = System.nanoTime() - begin;
+            status = response.getStatus();
+            classifier.setEncoding(response.getHeaders().get(HttpHeader.CONTENT_ENCODING));
+            if (status / 100 == 3 || status == HttpStatus.SC_UNAUTHORIZED || status == LOGIN_TIMEOUT) done
+                    (Result.EXPIRED);
+        }
+    }
+}
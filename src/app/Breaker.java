@@ -0,0 +1,293 @@
+package app;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>This class stops the requests of an {@link Engine} for a while when most of them fail, such as when
+ * the network is down or the server has gone away. Without it, every worker thread would send its next
+ * request as soon as the last one fails, which burns the CPU on exceptions and looks like an attack to
+ * the server.</p> <p>The breaker is <tt>CLOSED</tt> while the failure rate of the last {@link #WINDOW}
+ * ms is low. Once at least {@link #MIN_REQUESTS} requests have been seen and {@link #THRESHOLD} of them
+ * have failed, it opens, and no request is sent until the open time is over. Then it is half-open: one
+ * request is sent as a probe, and the others wait for its result. A probe which succeeds closes the
+ * breaker. A probe which fails opens it again for longer.</p> <p>The open time is chosen by decorrelated
+ * jitter: a random time between {@link #BASE} and three times the last open time, capped at {@link
+ * #CAP}. So the threads of many clients behind the same network do not come back at the same moment.
+ * Every change of the state is told to the listener.</p> <p>While the breaker is closed, a request takes
+ * no lock: the state is read from a volatile field and the window is counted by striped counters. The
+ * lock is only taken to change the state. This class is thread-safe.</p>
+ * @see Limiter
+ */
+public class Breaker {
+
+    /**
+     * The state of a breaker.
+     */
+    public enum State {
+        /**
+         * The requests are sent.
+         */
+        CLOSED, /**
+         * No request is sent until the open time is over.
+         */
+        OPEN, /**
+         * One request is sent to see if the failures are over.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The length in ms of the window the failure rate is counted in.
+     */
+    private static final long WINDOW = 5000;
+    /**
+     * The count of buckets the window is divided into. The oldest bucket is dropped as a whole.
+     */
+    private static final int BUCKETS = 10;
+    /**
+     * The min count of requests in the window before the breaker may open.
+     */
+    private static final int MIN_REQUESTS = 10;
+    /**
+     * The failure rate which opens the breaker.
+     */
+    private static final double THRESHOLD = 0.5;
+    /**
+     * The min open time in ms.
+     */
+    private static final long BASE = 200;
+    /**
+     * The max open time in ms.
+     */
+    private static final long CAP = 10000;
+
+    /**
+     * The ticket of a request which is not a probe.
+     */
+    static final long NO_PROBE = 0;
+    /**
+     * The ticket {@link #acquire()} returns once the breaker has been stopped.
+     */
+    static final long STOPPED = -1;
+
+    private final Engine.Listener listener;
+    /**
+     * The number of the period of each bucket, and the counts of the requests and the failures in it.
+     * They are updated without a lock. A bucket which is being reused may lose a few counts of the
+     * threads racing with the reset, which does not matter to a rate.
+     */
+    private final AtomicLongArray periods = new AtomicLongArray(BUCKETS);
+    private final LongAdder[] requests = new LongAdder[BUCKETS];
+    private final LongAdder[] failures = new LongAdder[BUCKETS];
+    /**
+     * Written only with the lock held, and read without it by the fast path of {@link #acquire()}.
+     */
+    private volatile State state = State.CLOSED;
+    private volatile boolean stopped;
+    /**
+     * The last open time in ms.
+     */
+    private long delay = BASE;
+    /**
+     * The time in ns the breaker is half-open at.
+     */
+    private long openUntil;
+    /**
+     * The count of times the breaker has opened.
+     */
+    private long opens;
+    /**
+     * The ticket of the current probe, or {@link #NO_PROBE} if no probe is in flight. The tickets only go
+     * up, so the result of an old probe is never taken for the current one.
+     */
+    private long probe = NO_PROBE;
+    private long lastProbe = NO_PROBE;
+    /**
+     * The time in ns the current probe was let through.
+     */
+    private long probeSince;
+
+    /**
+     * Create a breaker, which is closed.
+     * @param listener receives the changes of the state
+     */
+    Breaker(Engine.Listener listener) {
+        this.listener = listener;
+        for (int i = 0; i < BUCKETS; i++) {
+            requests[i] = new LongAdder();
+            failures[i] = new LongAdder();
+        }
+        clear();
+    }
+
+    /**
+     * Wait until a request is allowed to be sent. It returns at once without any lock while the breaker
+     * is closed. While it is open, it waits until the open time is over, and then lets only one thread
+     * through as the probe. Pass the ticket to {@link #record(long, boolean)} with the result.
+     * @return {@link #NO_PROBE} for a request sent while the breaker is closed, a positive ticket for the
+     * probe, or {@link #STOPPED} if the breaker has been stopped by {@link #close()}
+     */
+    public long acquire() throws InterruptedException {
+        if (state == State.CLOSED && !stopped) return NO_PROBE;
+        synchronized (this) {
+            while (!stopped) {
+                if (state == State.CLOSED) return NO_PROBE;
+                long now = System.nanoTime();
+                if (state == State.OPEN) {
+                    long wait = openUntil - now;
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                        continue;
+                    }
+                    state = State.HALF_OPEN;
+                    probe = NO_PROBE;
+                }
+                //試探請求沒有回報的話（例如被中斷），過一陣子再派一個
+                if (probe == NO_PROBE || now - probeSince > TimeUnit.MILLISECONDS.toNanos(CAP)) {
+                    probe = ++lastProbe;
+                    probeSince = now;
+                    return probe;
+                }
+                //等試探請求的結果
+                TimeUnit.MILLISECONDS.timedWait(this, CAP);
+            }
+            return STOPPED;
+        }
+    }
+
+    /**
+     * Report the outcome of a request. A request answered by the server is a success, even if the
+     * session has expired or the page is an error, unless the status is 5xx. Only the result of the
+     * current probe changes a half-open breaker; the results of the requests sent before the breaker
+     * opened are only counted.
+     * @param ticket the ticket given by {@link #acquire()}, or {@link #NO_PROBE}
+     * @param failed <tt>true</tt> if the request got no response or a 5xx status
+     */
+    public void record(long ticket, boolean failed) {
+        long now = System.nanoTime();
+        long period = period(now);
+        int i = (int) Math.floorMod(period, (long) BUCKETS);
+        long old = periods.get(i);
+        if (old != period && periods.compareAndSet(i, old, period)) {
+            requests[i].reset();
+            failures[i].reset();
+        }
+        requests[i].increment();
+        if (failed) failures[i].increment();
+        if (ticket != NO_PROBE) settle(ticket, failed, now);
+        //成功的請求不會讓失敗率超過門檻，不用加總
+        else if (failed && state == State.CLOSED) check(period, now);
+    }
+
+    /**
+     * Get the state.
+     * @return the state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Get the failure rate of the window.
+     * @return the failure rate from 0 to 1, or 0 if no request has been seen in the window
+     */
+    public double getFailureRate() {
+        long period = period(System.nanoTime());
+        long total = sum(requests, period);
+        return total == 0 ? 0 : (double) sum(failures, period) / total;
+    }
+
+    /**
+     * Get the count of times the breaker has opened, including the times a probe failed.
+     * @return the count
+     */
+    public synchronized long getOpens() {
+        return opens;
+    }
+
+    /**
+     * Stop the breaker when the engine stops. This is not the <tt>CLOSED</tt> state: all of the threads
+     * waiting in {@link #acquire()} get {@link #STOPPED}.
+     */
+    public synchronized void close() {
+        stopped = true;
+        notifyAll();
+    }
+
+    private static long period(long now) {
+        return Math.floorDiv(TimeUnit.NANOSECONDS.toMillis(now), WINDOW / BUCKETS);
+    }
+
+    /**
+     * Open the breaker if the failure rate of the window has reached the threshold.
+     */
+    private void check(long period, long now) {
+        long total = sum(requests, period);
+        if (total < MIN_REQUESTS) return;
+        long failedTotal = sum(failures, period);
+        if (failedTotal < total * THRESHOLD) return;
+        String message;
+        synchronized (this) {
+            if (state != State.CLOSED) return;
+            open(now);
+            message = String.format("連線失敗率 %d%%，暫停 %.1f 秒。", failedTotal * 100 / total, delay /
+                    1000.0);
+        }
+        listener.onMessage(message);
+    }
+
+    /**
+     * Close or open the breaker again by the result of a probe.
+     */
+    private void settle(long ticket, boolean failed, long now) {
+        String message;
+        synchronized (this) {
+            if (state != State.HALF_OPEN || ticket != probe) return;
+            probe = NO_PROBE;
+            if (failed) {
+                open(now);
+                message = String.format("試探請求失敗，暫停 %.1f 秒。", delay / 1000.0);
+            }
+            else {
+                clear();
+                delay = BASE;
+                state = State.CLOSED;
+                message = "連線恢復，繼續刷課。";
+            }
+            notifyAll();
+        }
+        listener.onMessage(message);
+    }
+
+    /**
+     * Forget the requests seen so far.
+     */
+    private void clear() {
+        for (int i = 0; i < BUCKETS; i++) periods.set(i, Long.MIN_VALUE);
+    }
+
+    /**
+     * Add up the counts of the buckets in the window.
+     * @param counts {@link #requests} or {@link #failures}
+     * @param period the number of the current period
+     * @return the sum
+     */
+    private long sum(LongAdder[] counts, long period) {
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) if (periods.get(i) > period - BUCKETS) sum += counts[i].sum();
+        return sum;
+    }
+
+    /**
+     * Open the breaker for a time chosen by decorrelated jitter.
+     */
+    private void open(long now) {
+        delay = Math.min(CAP, ThreadLocalRandom.current().nextLong(BASE, delay * 3 + 1));
+        openUntil = now + TimeUnit.MILLISECONDS.toNanos(delay);
+        state = State.OPEN;
+        opens++;
+    }
+}
@@ -0,0 +1,246 @@
+package app;
+
+import cgu.Course;
+import cgu.WeekDay;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A local copy of the courses of the class searching page, so that a course can be found without
+ * searching CGU's website. It is filled at once by searching the courses of every department, and saved
+ * in a compact file which is read as a whole when it is opened. A course is decoded from the bytes only
+ * when it is asked for. The file is not memory-mapped, so that a new catalog can replace it while the
+ * old one is being used.</p> <p>The file starts with a header: a magic number, the version, the time the
+ * catalog was filled, the url of the class searching page and the count of courses. An index of the
+ * offsets of the courses sorted by ID follows, so that a course is found by binary search. Each course
+ * is its ID, name, teacher and url as UTF-8 strings with their lengths, and the ordinal of its {@link
+ * WeekDay}, or <tt>-1</tt> if there is none.</p> <p>The catalog expires after a time (see {@link
+ * #isExpired(long)}) since the courses and their urls change from term to term.</p> <p>Usage: <tt>java
+ * app.Catalog [--catalog=FILE] --course=ID[,ID...]</tt> checks courses offline.</p>
+ * @see CguWebClient#setCatalog(Path, long)
+ */
+public class Catalog {
+
+    /**
+     * The default file of the catalog.
+     */
+    public static final Path DEFAULT_FILE = Paths.get(System.getProperty("user.home"), ".cgu-enroller",
+            "catalog.bin");
+    /**
+     * The default time a catalog is used for, in ms.
+     */
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(12);
+    private static final int MAGIC = 0x43475543; //CGUC
+    private static final short VERSION = 1;
+    private static final byte NO_DAY = -1;
+    private static final WeekDay[] DAYS = WeekDay.values();
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long created;
+    /**
+     * The position of the index in the buffer.
+     */
+    private final int index;
+
+    private Catalog(ByteBuffer buffer, long created, int count, int index) {
+        this.buffer = buffer;
+        this.created = created;
+        this.count = count;
+        this.index = index;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        Catalog catalog = open(Paths.get(options.get("catalog", DEFAULT_FILE.toString())), null);
+        System.out.printf("%d courses, filled %d minutes ago.%n", catalog.size(), TimeUnit.MILLISECONDS
+                .toMinutes(System.currentTimeMillis() - catalog.created));
+        for (String id : options.require("course").split("[,\\s]+")) {
+            Course course = catalog.get(id);
+            System.out.println(id + " " + (course == null ? "開課序號錯誤" : course.toString()));
+        }
+    }
+
+    /**
+     * Get an empty catalog, which is expired.
+     * @return an empty catalog
+     */
+    static Catalog empty() {
+        return new Catalog(ByteBuffer.allocate(0), 0, 0, 0);
+    }
+
+    /**
+     * Open the catalog saved in a file. The file is read into the heap rather than memory-mapped, so it
+     * can be replaced by {@link #save(Path, URL, List)} while the catalog is used, which Windows does not
+     * allow for a mapped file.
+     * @param file        the file
+     * @param searchClass url of the class searching page the catalog is filled from, or <tt>null</tt>
+     *                    for any url
+     * @return the catalog, or an empty one if the file does not exist, is broken or is filled from
+     * another url
+     */
+    public static Catalog open(Path file, URL searchClass) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            return empty();
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) return empty();
+            long created = buffer.getLong();
+            String source = readString(buffer);
+            if (searchClass != null && !searchClass.toString().equals(source)) return empty();
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4) return empty();
+            return new Catalog(buffer, created, count, buffer.position());
+        } catch (BufferUnderflowException e) {
+            return empty();
+        }
+    }
+
+    /**
+     * Save courses in a file, which is replaced at once.
+     * @param file        the file
+     * @param searchClass url of the class searching page the courses are from
+     * @param courses     the courses
+     * @return the catalog of the courses
+     */
+    public static Catalog save(Path file, URL searchClass, List<Course> courses) throws IOException {
+        List<Course> sorted = new ArrayList<>(courses);
+        sorted.sort(Comparator.comparing(course -> course.id));
+        byte[][][] strings = new byte[sorted.size()][][];
+        byte[] source = searchClass.toString().getBytes(StandardCharsets.UTF_8);
+        int size = 4 + 2 + 8 + 2 + source.length + 4 + 4 * sorted.size();
+        for (int i = 0; i < sorted.size(); i++) {
+            Course course = sorted.get(i);
+            strings[i] = new byte[][]{utf8(course.id), utf8(course.name), utf8(course.teacher), utf8
+                    (course.url.toString())};
+            for (byte[] string : strings[i]) size += 2 + string.length;
+            size++;
+        }
+        long created = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putShort(VERSION).putLong(created).putShort((short) source.length).put
+                (source).putInt(sorted.size());
+        int index = buffer.position();
+        buffer.position(index + 4 * sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            buffer.putInt(index + 4 * i, buffer.position());
+            for (byte[] string : strings[i]) buffer.putShort((short) string.length).put(string);
+            WeekDay day = sorted.get(i).day;
+            buffer.put(day == null ? NO_DAY : (byte) day.ordinal());
+        }
+        buffer.flip();
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption
+                .WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        buffer.rewind();
+        return new Catalog(buffer, created, sorted.size(), index);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Too long: " + s);
+        return bytes;
+    }
+
+    /**
+     * Compare the ID of a course in the buffer with an ID, without decoding the former.
+     */
+    private static int compare(ByteBuffer buffer, int offset, byte[] id) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        for (int i = 0; i < length && i < id.length; i++) {
+            int c = (buffer.get(offset + 2 + i) & 0xFF) - (id[i] & 0xFF);
+            if (c != 0) return c;
+        }
+        return length - id.length;
+    }
+
+    /**
+     * Get a course.
+     * @param courseID the ID of the course
+     * @return the course, or <tt>null</tt> if it is not in the catalog
+     */
+    public Course get(String courseID) {
+        byte[] id = courseID.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        try {
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int offset = buffer.getInt(index + 4 * mid);
+                int c = compare(buffer, offset, id);
+                if (c < 0) low = mid + 1;
+                else if (c > 0) high = mid - 1;
+                else return read(offset);
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | MalformedURLException e) {
+            //The file is broken.
+        }
+        return null;
+    }
+
+    /**
+     * Get the time the catalog was filled.
+     * @return the time in ms since the epoch, or 0 if the catalog is empty
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Check if the catalog is too old to use.
+     * @param ttl the time a catalog is used for, in ms
+     * @return <tt>true</tt> if the catalog is older than <tt>ttl</tt> or empty
+     */
+    public boolean isExpired(long ttl) {
+        return count == 0 || System.currentTimeMillis() - created > ttl;
+    }
+
+    /**
+     * Get the count of courses.
+     * @return the count of courses
+     */
+    public int size() {
+        return count;
+    }
+
+    private Course read(int offset) throws MalformedURLException {
+        //Every thread reads with its own position.
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        String id = readString(in);
+        String name = readString(in);
+        String teacher = readString(in);
+        URL url = new URL(readString(in));
+        byte day = in.get();
+        return new Course(name, url, id, teacher, day < 0 || day >= DAYS.length ? null : DAYS[day]);
+    }
+}
@@ -4,25 +4,50 @@ import cgu.WeekDay;
 import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.*;
+import com.gargoylesoftware.htmlunit.util.Cookie;
 import notify.LoginFailException;
+import notify.SessionExpiredException;
+import org.apache.http.impl.cookie.BasicClientCookie;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>This class represents a client used to deal with the website of CGU, such as logging in the student
  * system or enrolling a class. Use this class to enroll a class violently.</p> <p>Use the same instance
  * when logging and enrolling a class. Otherwise, different instances represents different client, which
- * means that it is unable to enroll any classes.</p> <p>Remember to close the client if it is not used.
- * Call {@link #close()} method.</p>
+ * means that it is unable to enroll any classes.</p> <p>Logging in and searching courses are done by
+ * plain form posts first (see {@link LiteClient}). HtmlUnit, which runs the JavaScript of the pages, is
+ * only created if a page is not what the fast path expects. The cookies are copied between the two.</p>
+ * <p>If a {@link Catalog} is set, courses are found in it first. When it expires, it is filled again on
+ * a background thread, and the expired catalog is used until the new one is ready. A fill which fails
+ * is tried again after a while, which doubles after each failure.</p>
+ * <p>Remember to close the client if it is not used. Call {@link #close()} method.</p>
  * @author Parabola
  */
 public class CguWebClient implements Closeable {
 
-    private static final URL SEARCH_CLASS;
-    private static final URL STUDENT_SYSTEM;
+    /**
+     * The default url of the class searching page of CGU's website.
+     */
+    public static final URL SEARCH_CLASS;
+    /**
+     * The default url of the student system of CGU's website.
+     */
+    public static final URL STUDENT_SYSTEM;
+    /**
+     * The time in ms before a failed fill of the catalog is tried again. It doubles after each failure.
+     */
+    private static final long FILL_RETRY = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * The max time in ms before a failed fill of the catalog is tried again.
+     */
+    private static final long FILL_RETRY_MAX = TimeUnit.MINUTES.toMillis(30);
 
     static {
         try {
@@ -35,9 +60,43 @@ public class CguWebClient implements Closeable {
     }
 
     /**
-     * The real client that connects to CGU's website. It is only package-visible and final.
+     * The root of the website, whose cookies are sent with the enrolling requests. It is only
+     * package-visible and final.
+     */
+    final URL home;
+    /**
+     * The fast path of this client.
      */
-    final WebClient client;
+    private final LiteClient lite;
+    /**
+     * The catalog of courses, or <tt>null</tt> if it is not set.
+     */
+    private volatile Catalog catalog;
+    private Path catalogFile;
+    private long catalogTtl;
+    /**
+     * Whether the catalog is being filled on a background thread.
+     */
+    private boolean filling;
+    /**
+     * The time in ms the catalog may be filled again after a failure, and the time to wait after the
+     * next failure.
+     */
+    private long fillAfter;
+    private long fillRetry = FILL_RETRY;
+    /**
+     * The ID and the password of the last successful login, used by {@link #relogin()}.
+     */
+    private String password;
+    private String studentId;
+    private final URL searchClass;
+    private final URL studentSystem;
+    private final int timeout;
+    /**
+     * The HtmlUnit client, which is only created when the fast path fails.
+     * @see #webClient()
+     */
+    private WebClient client;
 
     /**
      * To get a new client with default timeout. The timeout will be 4000 ms.
@@ -50,31 +109,148 @@ public class CguWebClient implements Closeable {
      * To get a new client with given timeout.
      */
     public CguWebClient(int timeout) {
+        this(STUDENT_SYSTEM, SEARCH_CLASS, timeout);
+    }
+
+    /**
+     * To get a new client that connects to another website, such as a local stand-in of CGU's website.
+     * @param studentSystem url of the student system, the login link is found on this page
+     * @param searchClass   url of the class searching page
+     * @param timeout       timeout in ms
+     */
+    public CguWebClient(URL studentSystem, URL searchClass, int timeout) {
         super();
-        client = new WebClient(BrowserVersion.INTERNET_EXPLORER);
-        client.getOptions().setJavaScriptEnabled(true);
-        client.getOptions().setRedirectEnabled(true);
-        client.getOptions().setThrowExceptionOnScriptError(false);
-        client.getOptions().setCssEnabled(false);
-        client.getOptions().setTimeout(timeout);
+        this.studentSystem = studentSystem;
+        this.searchClass = searchClass;
+        try {
+            this.home = new URL(studentSystem, "/");
+        } catch (MalformedURLException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+        this.timeout = timeout;
+        lite = new LiteClient(timeout);
+    }
+
+    private static String studentName(String html) {
+        int beginIndex = html.indexOf("Hello");
+        if (beginIndex == -1) {
+            return null;
+        }
+        int endIndex = html.lastIndexOf("  <span class=Accent>");
+        return html.substring(beginIndex + 7, endIndex);
     }
 
     /**
      * Close the client.
      */
     @Override
-    public void close() {
-        client.close();
+    public synchronized void close() {
+        try {
+            lite.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (client != null) client.close();
+    }
+
+    /**
+     * Get the value of the <tt>Cookie</tt> header of the enrolling requests.
+     * @return the value of the <tt>Cookie</tt> header
+     */
+    String getCookieHeader() {
+        return lite.getCookieHeader(home);
+    }
+
+    /**
+     * Get the fields of the form of a page, such as <tt>__VIEWSTATE</tt>.
+     * @param url url of the page
+     * @return the fields, in the order of the page
+     * @throws IOException               if the page has no <tt>__VIEWSTATE</tt>
+     * @throws SessionExpiredException if the server answers the login page instead
+     */
+    Map<String, String> getFormFields(URL url) throws IOException {
+        return lite.getFormFields(url);
     }
 
     /**
-     * Get the url address of a given course ID.
+     * Get the url address of a given course ID. The catalog is searched first if it is set.
      * @param courseID the ID of a class
      * @return the url address of a given course ID, or <tt>null</tt> if that class does not exist.
      */
     public Course getCourse(final String courseID) throws IOException {
+        Catalog catalog = getCatalog();
+        Course course = catalog == null ? null : catalog.get(courseID);
+        //A course that is not in the catalog may be opened after the catalog is filled.
+        return course != null ? course : searchCourse(courseID);
+    }
+
+    /**
+     * Get the catalog of courses. If it has expired, it is filled again on a background thread, and this
+     * method returns the expired one at once.
+     * @return the catalog, which may be expired or empty, or <tt>null</tt> if it is not set
+     */
+    public Catalog getCatalog() {
+        Catalog catalog = this.catalog;
+        if (catalog != null && catalog.isExpired(catalogTtl)) fill();
+        return catalog;
+    }
+
+    /**
+     * Fill the catalog again on a background thread, unless it is being filled, has been filled, or the
+     * last fill has failed a short while ago.
+     */
+    private synchronized void fill() {
+        if (filling || !catalog.isExpired(catalogTtl) || System.currentTimeMillis() < fillAfter) return;
+        filling = true;
+        final Path file = catalogFile;
+        Thread thread = new Thread(() -> {
+            Catalog filled = null;
+            try {
+                filled = Catalog.save(file, searchClass, lite.getCourses(searchClass));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Cannot fill the catalog: " + e.getMessage());
+            }
+            synchronized (this) {
+                filling = false;
+                if (filled == null) {
+                    fillAfter = System.currentTimeMillis() + fillRetry;
+                    fillRetry = Math.min(FILL_RETRY_MAX, fillRetry * 2);
+                }
+                //目錄檔在填的時候被換掉的話就不用這份
+                else if (file.equals(catalogFile)) {
+                    catalog = filled;
+                    fillRetry = FILL_RETRY;
+                }
+            }
+        }, "Catalog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Use a catalog of courses saved in a file. The file is created when the catalog is filled the first
+     * time. It is filled by searching CGU's website, so it should be used after logging in. The file is
+     * read at once, and it is filled in the background by {@link #getCatalog()} if it has expired.
+     * @param file the file of the catalog
+     * @param ttl  the time a catalog is used for before it is filled again, in ms
+     */
+    public synchronized void setCatalog(Path file, long ttl) throws IOException {
+        catalogFile = file;
+        catalogTtl = ttl;
+        fillAfter = 0;
+        fillRetry = FILL_RETRY;
+        catalog = Catalog.open(file, searchClass);
+    }
+
+    private Course searchCourse(final String courseID) throws IOException {
         try {
-            HtmlPage searchClassPage = client.getPage(SEARCH_CLASS);
+            return lite.getCourse(searchClass, courseID);
+        } catch (IOException e) {
+            System.err.println("Fall back to HtmlUnit: " + e.getMessage());
+        }
+        try {
+            final WebClient client = webClient();
+            HtmlPage searchClassPage = client.getPage(searchClass);
             ((HtmlTextInput) searchClassPage.getElementByName("_ctl1:courseID")).setValueAttribute
                     (courseID);
             final HtmlPage searchResult = searchClassPage.getElementByName("_ctl1:newSearch").click();
@@ -83,16 +259,7 @@ public class CguWebClient implements Closeable {
                     courseID + "<BR>")) {
                 final HtmlTableRow row = ((HtmlTable) searchResult.getElementById("_ctl2_myGrid"))
                         .getBodies().get(0).getRows().get(1);
-                final String dayCell = row.getCell(8).asText();
-                final WeekDay day;
-                if (dayCell.contains("Mon")) day = WeekDay.MON;
-                else if (dayCell.contains("Tue")) day = WeekDay.TUE;
-                else if (dayCell.contains("Wed")) day = WeekDay.WED;
-                else if (dayCell.contains("Thu")) day = WeekDay.THU;
-                else if (dayCell.contains("Fri")) day = WeekDay.FRI;
-                else if (dayCell.contains("Say")) day = WeekDay.SAT;
-                else if (dayCell.contains("Sun")) day = WeekDay.SUN;
-                else day = null;
+                final WeekDay day = WeekDay.parse(row.getCell(8).asText());
                 final String clzName = row.getCell(5).asText().split("\r\n")[0];
                 final String teacher = row.getCell(6).asText();
                 return new Course(clzName, searchResult.getUrl(), courseID, teacher, day);
@@ -102,6 +269,8 @@ public class CguWebClient implements Closeable {
             throw e;
         } catch (Exception e) {
             throw new IOException(e);
+        } finally {
+            fromWebClient();
         }
     }
 
@@ -110,14 +279,7 @@ public class CguWebClient implements Closeable {
      * @return the student's name, or <tt>null</tt> if no one is logging in.
      */
     public String getStudentName() throws IOException {
-        StringBuilder html = new StringBuilder(client.getPage(STUDENT_SYSTEM).getWebResponse()
-                .getContentAsString());
-        int beginIndex = html.indexOf("Hello");
-        if (beginIndex == -1) {
-            return null;
-        }
-        int endIndex = html.lastIndexOf("  <span class=Accent>");
-        return html.substring(beginIndex + 7, endIndex);
+        return studentName(lite.get(studentSystem, true).html);
     }
 
     /**
@@ -139,10 +301,69 @@ public class CguWebClient implements Closeable {
      *                            frequently
      */
     public String login(String studentId, String password) throws IOException, LoginFailException {
+        String name = authenticate(studentId, password);
+        if (name != null) synchronized (this) {
+            this.studentId = studentId;
+            this.password = password;
+        }
+        return name;
+    }
+
+    /**
+     * Use the cookies of an earlier login instead of logging in, such as the ones saved by a {@link
+     * JobStore}. The ID and the password are kept for {@link #relogin()} as if they had logged in.
+     * @param studentId a student's ID
+     * @param password  the student's password
+     * @param cookies   the value of the <tt>Cookie</tt> header of the earlier login
+     * @return the student's name if the cookies are still valid, or <tt>null</tt> if the client has to
+     * log in again
+     */
+    String restore(String studentId, String password, String cookies) throws IOException {
+        for (String pair : cookies.split(";\\s*")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            BasicClientCookie cookie = new BasicClientCookie(pair.substring(0, eq), pair.substring(eq + 1));
+            cookie.setDomain(home.getHost());
+            cookie.setPath("/");
+            lite.cookies.addCookie(cookie);
+        }
+        synchronized (this) {
+            this.studentId = studentId;
+            this.password = password;
+        }
+        return getStudentName();
+    }
+
+    /**
+     * Log in the student system again with the ID and the password of the last successful login. It is
+     * used when the session has expired.
+     * @return the student's name, or <tt>null</tt> if password is wrong
+     * @throws LoginFailException if the client has never logged in, or something unknown happens
+     */
+    String relogin() throws IOException, LoginFailException {
+        String studentId;
+        String password;
+        synchronized (this) {
+            studentId = this.studentId;
+            password = this.password;
+        }
+        if (studentId == null) throw new LoginFailException("Never logged in.");
+        return authenticate(studentId, password);
+    }
+
+    private String authenticate(String studentId, String password) throws IOException,
+            LoginFailException {
+        try {
+            String html = lite.login(studentSystem, studentId, password);
+            return html == null ? null : studentName(html);
+        } catch (LoginFailException e) {
+            System.err.println("Fall back to HtmlUnit: " + e.getMessage());
+        }
         HtmlPage loginPage = null;
+        final WebClient client = webClient();
         try {
             // Log in process.
-            loginPage = ((HtmlPage) client.getPage(STUDENT_SYSTEM)).getAnchorByHref("/portal/Login" +
+            loginPage = ((HtmlPage) client.getPage(studentSystem)).getAnchorByHref("/portal/Login" +
                     ".aspx").click();
             ((HtmlTextInput) loginPage.getElementByName("Ecom_User_ID")).setValueAttribute(studentId);
             ((HtmlPasswordInput) loginPage.getElementByName("Ecom_Password")).setValueAttribute
@@ -151,8 +372,8 @@ public class CguWebClient implements Closeable {
             client.waitForBackgroundJavaScript(30 * 1000);
             StringBuilder html = new StringBuilder(relocatePage.getWebResponse().getContentAsString());
 
-            if (!relocatePage.getUrl().equals(STUDENT_SYSTEM)) {
-                relocatePage = client.getPage(STUDENT_SYSTEM);
+            if (!relocatePage.getUrl().equals(studentSystem)) {
+                relocatePage = client.getPage(studentSystem);
             }
             // Check log in status.
             int beginIndex = html.indexOf("Hello");
@@ -177,6 +398,8 @@ public class CguWebClient implements Closeable {
                 System.err.println("Arg loginPage is null.");
             }
             throw new LoginFailException(e);
+        } finally {
+            fromWebClient();
         }
     }
 
@@ -188,5 +411,33 @@ public class CguWebClient implements Closeable {
         return getStudentName() != null;
     }
 
+    /**
+     * Get the HtmlUnit client. It is created and given the cookies of the fast path the first time this
+     * method is called.
+     * @return the HtmlUnit client
+     */
+    private synchronized WebClient webClient() {
+        if (client == null) {
+            client = new WebClient(BrowserVersion.INTERNET_EXPLORER);
+            client.getOptions().setJavaScriptEnabled(true);
+            client.getOptions().setRedirectEnabled(true);
+            client.getOptions().setThrowExceptionOnScriptError(false);
+            client.getOptions().setCssEnabled(false);
+            client.getOptions().setTimeout(timeout);
+        }
+        for (Cookie c : Cookie.fromHttpClient(lite.cookies.getCookies())) client.getCookieManager().addCookie
+                (c);
+        return client;
+    }
+
+    /**
+     * Copy the cookies of the HtmlUnit client to the fast path.
+     */
+    private synchronized void fromWebClient() {
+        if (client == null) return;
+        for (org.apache.http.cookie.Cookie c : Cookie.toHttpClient(client.getCookieManager().getCookies()))
+            lite.cookies.addCookie(c);
+    }
+
 }
 
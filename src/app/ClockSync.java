@@ -0,0 +1,136 @@
+package app;
+
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * <p>This class estimates how far the clock of CGU's server is from the local clock, by the
+ * <tt>Date</tt> headers of a few <tt>HEAD</tt> requests.</p> <p>A <tt>Date</tt> header only has whole
+ * seconds, but it still tells something: the server read its clock at some time between sending the
+ * request and receiving the response, and the clock was in that second. Each sample gives a range of
+ * the offset, like NTP does with the round trip, and the ranges are intersected. The later samples are
+ * sent so that they reach the server just when its clock ticks to the next second by the current
+ * estimate, which halves the range each time. After a few samples the error is about half of the round
+ * trip time.</p>
+ * @see Engine#start(CguWebClient, java.util.List, long)
+ */
+class ClockSync {
+
+    /**
+     * The max count of samples.
+     */
+    private static final int MAX_SAMPLES = 10;
+    /**
+     * The samples stop once the error is not more than this many ms, or half of the round trip.
+     */
+    private static final long GOAL = 5;
+    private static final String[] TIME_FORMATS = {"yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss",
+            "yyyy-MM-dd HH:mm"};
+    private static final String[] TODAY_FORMATS = {"HH:mm:ss.SSS", "HH:mm:ss", "HH:mm"};
+
+    /**
+     * The time of the server minus the local time, in ms.
+     */
+    final long offset;
+    /**
+     * The max error of {@link #offset} in ms.
+     */
+    final long error;
+    /**
+     * The fastest round trip time seen, in ms.
+     */
+    final long rtt;
+
+    private ClockSync(long offset, long error, long rtt) {
+        this.offset = offset;
+        this.error = error;
+        this.rtt = rtt;
+    }
+
+    /**
+     * Estimate the offset of the clock of a server. It takes up to a few seconds.
+     * @param pool the pool to send the requests with
+     * @param uri  a page of the server
+     * @return the estimate
+     * @throws IOException if a request fails or the server sends no <tt>Date</tt> header
+     */
+    static ClockSync measure(HttpPool pool, URI uri) throws IOException, InterruptedException {
+        long low = Long.MIN_VALUE;
+        long high = Long.MAX_VALUE;
+        long rtt = Long.MAX_VALUE;
+        //The range cannot be much narrower than the round trip.
+        for (int n = 0; n < MAX_SAMPLES && (n == 0 || high - low > Math.max(2 * GOAL, rtt)); n++) {
+            if (n > 0) {
+                //讓請求在伺服器時鐘跳到下一秒的時候抵達
+                long estimate = low + (high - low) / 2;
+                long now = System.currentTimeMillis();
+                long tick = Math.floorDiv(now + estimate + rtt / 2, 1000) * 1000 + 1000;
+                Thread.sleep(Math.max(0, tick - estimate - rtt / 2 - now));
+            }
+            long begin = System.currentTimeMillis();
+            String date = pool.head(uri, "Date");
+            long end = System.currentTimeMillis();
+            Date parsed = date == null ? null : DateUtils.parseDate(date);
+            if (parsed == null) throw new IOException("No Date header: " + uri);
+            long server = parsed.getTime();
+            rtt = Math.min(rtt, end - begin);
+            long sampleLow = server - end;
+            long sampleHigh = server + 999 - begin;
+            if (sampleLow > high || sampleHigh < low) {
+                //The server clock has jumped, start again.
+                low = sampleLow;
+                high = sampleHigh;
+            }
+            else {
+                low = Math.max(low, sampleLow);
+                high = Math.min(high, sampleHigh);
+            }
+        }
+        return new ClockSync(low + (high - low) / 2, (high - low + 1) / 2, rtt);
+    }
+
+    /**
+     * Parse a time given by a user, in the time zone of the JVM. The date can be omitted for today.
+     * Formats: <tt>yyyy-MM-dd HH:mm:ss.SSS</tt>, <tt>yyyy-MM-dd HH:mm:ss</tt>, <tt>yyyy-MM-dd HH:mm</tt>,
+     * <tt>HH:mm:ss.SSS</tt>, <tt>HH:mm:ss</tt> and <tt>HH:mm</tt>.
+     * @param text the time
+     * @return the time in ms since the epoch
+     * @throws ParseException if the text is in none of the formats
+     */
+    static long parseTime(String text) throws ParseException {
+        text = text.trim();
+        for (String format : TIME_FORMATS) {
+            Date date = parse(format, text);
+            if (date != null) return date.getTime();
+        }
+        for (String format : TODAY_FORMATS) {
+            Date date = parse(format, text);
+            if (date == null) continue;
+            Calendar time = Calendar.getInstance();
+            time.setTime(date);
+            Calendar today = Calendar.getInstance();
+            today.set(Calendar.HOUR_OF_DAY, time.get(Calendar.HOUR_OF_DAY));
+            today.set(Calendar.MINUTE, time.get(Calendar.MINUTE));
+            today.set(Calendar.SECOND, time.get(Calendar.SECOND));
+            today.set(Calendar.MILLISECOND, time.get(Calendar.MILLISECOND));
+            return today.getTimeInMillis();
+        }
+        throw new ParseException("Unknown time: " + text, 0);
+    }
+
+    private static Date parse(String format, String text) {
+        SimpleDateFormat parser = new SimpleDateFormat(format);
+        parser.setLenient(false);
+        ParsePosition position = new ParsePosition(0);
+        Date date = parser.parse(text, position);
+        //Only accept the whole text.
+        return position.getIndex() == text.length() ? date : null;
+    }
+}
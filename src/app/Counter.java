@@ -1,71 +1,89 @@
 package app;
 
-import swing.CounterLabel;
+import notify.Result;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * This class is used to count the times a request has been sent. It is thread-safe.
+ * <p>This class is used to count the times a request has been sent. It is thread-safe.</p> <p>There is
+ * one striped counter for each {@link Result}, so the worker threads add their results directly without
+ * contending on one lock. The first terminal result (see {@link Result#isTerminal()}) is kept and
+ * released through a one-shot latch.</p>
  */
 public class Counter {
 
     /**
-     * A <tt>JLabel</tt> used to show the text of {@link #nFail}.
-     * @see CounterLabel
+     * Indicates the times of each result, indexed by the ordinal of the result.
      */
-    private final CounterLabel lbFail;
+    private final LongAdder[] counts = new LongAdder[Result.values().length];
     /**
-     * A <tt>JLabel</tt> used to show the text of {@link #nFull}.
-     * @see CounterLabel
+     * The first terminal result, or <tt>null</tt> if there is none yet.
      */
-    private final CounterLabel lbFull;
+    private final AtomicReference<Result> terminal = new AtomicReference<>();
     /**
-     * Indicates the times of failure.
+     * Released once {@link #terminal} is set. It is replaced by {@link #clear()}.
      */
-    private final AtomicLong nFail = new AtomicLong(0);
+    private volatile CountDownLatch latch = new CountDownLatch(1);
+
     /**
-     * Indicates the times of "This course is full of students".
+     * Create a Counter. The initial counts are all 0.
      */
-    private final AtomicLong nFull = new AtomicLong(0);
+    public Counter() {
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
 
     /**
-     * Create a Counter. The initial count of <tt>nFail</tt> and <tt>nFull</tt> are both 0.
-     * @param lbFull a <tt>JLabel</tt> used to show the text of <tt>nFull</tt>
-     * @param lbFail a <tt>JLabel</tt> used to show the text of <tt>nFail</tt>
+     * Add a result.
+     * @param result the result of a request
+     * @return <tt>true</tt> if this is the first terminal result since the counter was cleared
      */
-    public Counter(CounterLabel lbFull, CounterLabel lbFail) {
-        this.lbFull = lbFull;
-        this.lbFail = lbFail;
+    public boolean add(Result result) {
+        counts[result.ordinal()].increment();
+        if (result.isTerminal() && terminal.compareAndSet(null, result)) {
+            latch.countDown();
+            return true;
+        }
+        return false;
     }
 
     /**
-     * Set the times of fail and full to 0.
+     * Wait until a terminal result is added.
+     * @return the first terminal result
      */
-    public void clear() {
-        nFail.set(0);
-        nFull.set(0);
-        refresh();
+    public Result await() throws InterruptedException {
+        latch.await();
+        return terminal.get();
     }
 
     /**
-     * Times of fail +1.
+     * Wait until a terminal result is added, or the time is out.
+     * @param timeout the max time to wait
+     * @param unit    the unit of <tt>timeout</tt>
+     * @return the first terminal result, or <tt>null</tt> if the time is out
      */
-    public void fail() {
-        nFail.addAndGet(1);
+    public Result await(long timeout, TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit) ? terminal.get() : null;
     }
 
     /**
-     * Times of full +1.
+     * Set all of the counts to 0 and forget the terminal result. Do not call this method while the
+     * worker threads are running.
      */
-    public void full() {
-        nFull.addAndGet(1);
+    public void clear() {
+        for (LongAdder count : counts) count.reset();
+        terminal.set(null);
+        if (latch.getCount() == 0) latch = new CountDownLatch(1);
     }
 
     /**
-     * show the latest counts.
+     * Get the times of a result.
+     * @param result the result
+     * @return the times of that result
      */
-    public void refresh() {
-        lbFull.setText(nFull.get());
-        lbFail.setText(nFail.get());
+    public long get(Result result) {
+        return counts[result.ordinal()].sum();
     }
 }
@@ -0,0 +1,283 @@
+package app;
+
+import cgu.Course;
+import notify.LoginFailException;
+import notify.Result;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>The headless entry point of the enroller. It does the same jobs as {@link Application} without any
+ * window, so it can run on a server without a display. AWT and Swing are never loaded.</p> <p>Usage:
+ * <tt>java app.Daemon --student=ID --course=ID[,ID...] [--ceiling=16] [--report=5] [--studentSystem=URL]
+ * [--searchClass=URL] [--catalog=FILE] [--catalogTtl=720] [--at=TIME] [--hedge=0] [--async=false]
+ * [--journal=DIR] [--metrics=PORT] [--accounts=FILE] [--rate=0] [--jobs=DIR] [--control=0]
+ * [--config=file]</tt>. The options can also be put in a properties file given by <tt>--config</tt>. The
+ * password is read from the <tt>password</tt> key of that file, the environment variable
+ * <tt>CGU_PASSWORD</tt> or the standard input, in that order, so it is never on the command line where
+ * <tt>ps</tt> shows it to every user. <tt>--report</tt> is the interval in seconds between the status
+ * lines. <tt>--catalog</tt> is the file of the {@link Catalog} of courses and <tt>--catalogTtl</tt> is
+ * the time in minutes it is used for before it is filled again. <tt>--at</tt> is the time enrolling
+ * opens, such as <tt>12:30</tt> or <tt>2017-09-01 12:30:00</tt>. Until then only a probe is sent every
+ * few seconds, and the requests start at the time by the clock of the server. <tt>--hedge</tt> is the
+ * max percentage of the requests sent again when they are slow (see {@link Hedger}), such as 5, or 0 for
+ * no hedging. <tt>--async=true</tt> sends the requests without blocking by an {@link AsyncPool}, which
+ * needs far fewer threads. <tt>--journal</tt> is the directory to record every request in (see {@link
+ * Journal}). <tt>--metrics</tt> is the port on <tt>127.0.0.1</tt> to serve the figures of the run on for
+ * Prometheus (see {@link Metrics}). <tt>--accounts</tt> is a file of many students to enroll for at the
+ * same time instead of <tt>--student</tt>, the password and <tt>--course</tt>, one line for each student
+ * in the form of <tt>ID PASSWORD COURSE[,COURSE...] [WEIGHT]</tt>. The requests are shared by the
+ * students by their weights (see {@link FairShare}). <tt>--rate</tt> is the max count of requests per
+ * second of all of the students, or 0 for no cap. <tt>--jobs</tt> runs the daemon as a service of the
+ * jobs in a {@link JobStore} in the directory instead, which are submitted, listed and cancelled by the
+ * API of {@link JobService} on the port <tt>--control</tt> with the token in the directory, and are
+ * resumed when the daemon starts again. Many courses can be given to <tt>--course</tt>, separated by
+ * commas, and they are enrolled at the same time.</p> <p>The exit code is 0 if every class is enrolled,
+ * 1 if the daemon cannot start, and 2 if another terminal result is got by any class.</p>
+ * @see Engine
+ */
+public class Daemon implements Engine.Listener {
+
+    /**
+     * The environment variable the password can be given by.
+     */
+    private static final String PASSWORD = "CGU_PASSWORD";
+
+    private final Engine engine;
+
+    private Daemon(int ceiling) {
+        engine = new Engine(ceiling, this);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            Options options = new Options(args);
+            System.exit(new Daemon(options.getInt("ceiling", Engine.DEFAULT_CEILING)).run(options));
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void log(String message) {
+        System.out.println(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()) + " " + message);
+    }
+
+    @Override
+    public void onDone() {
+        log("全部的課都有結果了。");
+    }
+
+    private static String name(Enrollment enrollment) {
+        String name = enrollment.course.id;
+        return enrollment.account.name.isEmpty() ? name : enrollment.account.name + " " + name;
+    }
+
+    /**
+     * Read the file of <tt>--accounts</tt>. Blank lines and lines starting with <tt>#</tt> are skipped.
+     * @return the ID, the password, the courses and the weight of each student
+     */
+    private static List<String[]> readAccounts(Path file) throws IOException {
+        List<String[]> accounts = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length < 3 || fields.length > 4) {
+                throw new IllegalArgumentException("Bad account: " + line);
+            }
+            String weight = fields.length == 4 ? fields[3] : "1";
+            accounts.add(new String[]{fields[0], fields[1], fields[2], weight});
+        }
+        if (accounts.isEmpty()) throw new IllegalArgumentException("No account: " + file);
+        return accounts;
+    }
+
+    /**
+     * Get the password of <tt>--student</tt> from the options, the environment or the standard input.
+     */
+    private static String password(Options options) throws IOException {
+        String password = options.get("password");
+        if (password == null) password = System.getenv(PASSWORD);
+        if (password != null) return password;
+        Console console = System.console();
+        if (console != null) {
+            char[] chars = console.readPassword("密碼：");
+            if (chars != null) return new String(chars);
+        }
+        else {
+            String line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    .readLine();
+            if (line != null) return line;
+        }
+        throw new IllegalArgumentException("No password: use the config file, " + PASSWORD + " or stdin.");
+    }
+
+    @Override
+    public void onFinish(Enrollment enrollment) {
+        log(name(enrollment) + " " + enrollment.course + "：" + enrollment.getResult());
+    }
+
+    @Override
+    public void onMessage(String message) {
+        log(message);
+    }
+
+    /**
+     * Set up an engine by the options which are shared by both of the modes.
+     */
+    private static void configure(Engine engine, Options options) throws IOException {
+        engine.setRate(Double.parseDouble(options.get("rate", "0")));
+        engine.setHedging(options.getInt("hedge", 0) / 100.0);
+        engine.setAsync(Boolean.parseBoolean(options.get("async", "false")));
+        if (options.get("journal") != null) engine.setJournal(Paths.get(options.get("journal")));
+        if (options.get("metrics") != null) {
+            Metrics metrics = new Metrics(engine, options.getInt("metrics", 0));
+            log("監控：http://127.0.0.1:" + metrics.getPort() + "/metrics");
+        }
+    }
+
+    /**
+     * Run the jobs of <tt>--jobs</tt> until the JVM is stopped.
+     */
+    private void serve(Options options) throws IOException, InterruptedException {
+        URL studentSystem = new URL(options.get("studentSystem", CguWebClient.STUDENT_SYSTEM.toString()));
+        URL searchClass = new URL(options.get("searchClass", CguWebClient.SEARCH_CLASS.toString()));
+        Path catalog = Paths.get(options.get("catalog", Catalog.DEFAULT_FILE.toString()));
+        long ttl = TimeUnit.MINUTES.toMillis(options.getInt("catalogTtl", (int) TimeUnit.MILLISECONDS
+                .toMinutes(Catalog.DEFAULT_TTL)));
+        JobStore store = JobStore.open(Paths.get(options.get("jobs")));
+        int ceiling = options.getInt("ceiling", Engine.DEFAULT_CEILING);
+        JobService service = new JobService(store, ceiling, () -> {
+            CguWebClient client = new CguWebClient(studentSystem, searchClass, 4000);
+            client.setCatalog(catalog, ttl);
+            return client;
+        }, this);
+        configure(service.getEngine(), options);
+        int port = service.serve(options.getInt("control", 0));
+        log("工作佇列：http://127.0.0.1:" + port + "/jobs，權杖：" + store.getTokenFile());
+        Runtime.getRuntime().addShutdownHook(new Thread(service::close));
+        service.start();
+        //工作都在背景執行，直到程式被停止
+        new CountDownLatch(1).await();
+    }
+
+    private int run(Options options) throws IOException {
+        if (options.get("jobs") != null) {
+            try {
+                serve(options);
+            } catch (InterruptedException e) {
+                //Never wakes up.
+            }
+            return 0;
+        }
+        URL studentSystem = new URL(options.get("studentSystem", CguWebClient.STUDENT_SYSTEM.toString()));
+        URL searchClass = new URL(options.get("searchClass", CguWebClient.SEARCH_CLASS.toString()));
+        List<String[]> entries;
+        boolean many = options.get("accounts") != null;
+        if (many) entries = readAccounts(Paths.get(options.get("accounts")));
+        else entries = Collections.singletonList(new String[]{options.require("student"), password(options),
+                options.require("course"), "1"});
+        int report = options.getInt("report", 5);
+        configure(engine, options);
+        long openTime = 0;
+        if (options.get("at") != null) {
+            try {
+                openTime = ClockSync.parseTime(options.get("at"));
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        List<CguWebClient> clients = new ArrayList<>(entries.size());
+        try {
+            List<Account> accounts = new ArrayList<>(entries.size());
+            for (String[] entry : entries) {
+                String prefix = many ? entry[0] + " " : "";
+                CguWebClient client = new CguWebClient(studentSystem, searchClass, 4000);
+                clients.add(client);
+                String username = client.login(entry[0], entry[1]);
+                if (username == null) {
+                    log(prefix + "帳號或密碼錯誤。");
+                    return 1;
+                }
+                log("已登入【" + username + "】");
+                client.setCatalog(Paths.get(options.get("catalog", Catalog.DEFAULT_FILE.toString())),
+                        TimeUnit.MINUTES.toMillis(options.getInt("catalogTtl", (int) TimeUnit
+                                .MILLISECONDS.toMinutes(Catalog.DEFAULT_TTL))));
+                List<Course> courses = new ArrayList<>();
+                for (String courseID : entry[2].split("[,\\s]+")) {
+                    Course course = client.getCourse(courseID);
+                    if (course == null) {
+                        log(prefix + "開課序號錯誤：" + courseID);
+                        return 1;
+                    }
+                    log(prefix + courseID + " " + course);
+                    courses.add(course);
+                }
+                int weight = Integer.parseInt(entry[3]);
+                accounts.add(new Account(many ? entry[0] : "", client, courses, weight));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (!engine.isRunning()) return;
+                engine.stop();
+                log("刷課機已停止。");
+                log(engine.latency.getSummary());
+            }));
+            engine.start(accounts, openTime);
+            Timer timer = new Timer(true);
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    Limiter limiter = engine.getLimiter();
+                    log(String.format("嘗試 %d 次，錯誤 %d 次，同時 %d 個請求（上限 %d），%s", engine.counter.get
+                            (Result.FULL) + engine.counter.get(Result.TIME_INCORRECT), engine.counter.get
+                            (Result.FAIL), limiter.getInFlight(), limiter.getLimit(), engine.latency
+                            .getLiveText()));
+                    Hedger hedger = engine.getHedger();
+                    if (hedger != null && hedger.getSent() > 0) log(String.format("  對沖 %d 次，先回應 %d " +
+                            "次，延遲 %d ms", hedger.getSent(), hedger.getWins(), hedger.getDelay()));
+                    if (engine.getEnrollments().size() == 1) return;
+                    for (Enrollment enrollment : engine.getEnrollments()) {
+                        log(String.format("  %s 嘗試 %d 次，%s", name(enrollment), enrollment.counter.get(
+                                Result.FULL) + enrollment.counter.get(Result.TIME_INCORRECT), enrollment
+                                .isFinished() ? enrollment.getResult() : "刷課中"));
+                    }
+                }
+            }, report * 1000L, report * 1000L);
+            engine.await();
+            timer.cancel();
+            log(engine.latency.getSummary());
+            for (Enrollment enrollment : engine.getEnrollments()) {
+                if (enrollment.getResult() != Result.SUCCESS) return 2;
+            }
+            return 0;
+        } catch (LoginFailException e) {
+            e.printStackTrace();
+            log("操作異常。");
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        } finally {
+            for (CguWebClient client : clients) client.close();
+        }
+    }
+}
@@ -0,0 +1,820 @@
+package app;
+
+import cgu.Course;
+import notify.Result;
+import notify.SessionExpiredException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>This class does the real jobs of enrolling classes: it sends requests to CGU's server repeatly on a
+ * set of worker threads and counts the results. It can enroll many courses at the same time. The worker
+ * threads and the connections are shared by all of the courses: each worker takes the next unfinished
+ * course in turn, so the requests of a course that has got a terminal result (see {@link
+ * Result#isTerminal()}) go to the other courses. The engine stops when every course is finished or
+ * {@link #stop()} is called.</p> <p>The courses can belong to many {@link Account}s, each with its own
+ * login session. They share the worker threads and the connections, so the threads and the memory grow
+ * with the requests in flight rather than the accounts, and a {@link FairShare} divides the requests
+ * among them by their weights, under a global rate cap if one is set.</p> <p>It does not depend on any
+ * GUI. The GUI ({@link Application}) and the headless entry point ({@link Daemon}) both drive an
+ * <tt>Engine</tt> and receive its events through a {@link Listener}.</p> <p>By default each request
+ * holds a worker thread until it is answered. In the asynchronous mode (see {@link #setAsync(boolean)})
+ * the requests are sent by an {@link AsyncPool} instead, and one dispatcher thread sends all of
+ * them.</p> <p>The address of the server is looked up once when the engine starts and pinned. Before a
+ * scheduled run fires, the engine warms up (see {@link WarmUp}): it opens its connections and trains the
+ * parse path, and then it is hot (see {@link #isHot()}).</p>
+ * @see Enrollment
+ * @see Request
+ * @see Limiter
+ * @see Refresher
+ * @see Session
+ * @see FairShare
+ * @see Hedger
+ * @see Journal
+ * @see WarmUp
+ */
+public class Engine {
+
+    /**
+     * Receives the events of an {@link Engine}. The methods are called from the worker threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called when every course has finished. The engine has already been stopped.
+         */
+        void onDone();
+
+        /**
+         * Called when a course gets its terminal result. The other courses go on.
+         * @param enrollment the finished course
+         */
+        void onFinish(Enrollment enrollment);
+
+        /**
+         * Called when the engine has something to say.
+         * @param message the message
+         */
+        void onMessage(String message);
+    }
+
+    /**
+     * The default max count of requests in flight.
+     */
+    public static final int DEFAULT_CEILING = 16;
+    /**
+     * Connect and read timeout of the requests in ms.
+     */
+    private static final int TIMEOUT = 10000;
+    /**
+     * The interval in ms between two probes before enrolling opens.
+     */
+    private static final long PROBE_INTERVAL = 10000;
+    /**
+     * The time in ms before enrolling opens when the worker threads open their connections.
+     */
+    private static final long WARM_UP = 2000;
+    /**
+     * The time in ms before enrolling opens when the scheduler stops sleeping and starts spinning.
+     */
+    private static final long SPIN = 20;
+
+    /**
+     * The max count of requests in flight, which is also the count of worker threads.
+     */
+    public final int ceiling;
+    /**
+     * The counts of the results of all of the courses. It is cleared when the engine starts.
+     */
+    public final Counter counter = new Counter();
+    /**
+     * The latency of the requests. It is cleared when the engine starts.
+     */
+    public final Latency latency = new Latency();
+    /**
+     * The count of bytes of the response bodies read, as they are sent and after they are inflated,
+     * indexed by the ordinal of the result. They are cleared when the engine starts.
+     */
+    private final LongAdder[] wireBytes = adders();
+    private final LongAdder[] decodedBytes = adders();
+    private final Listener listener;
+    /**
+     * Released when the engine stops.
+     */
+    private volatile CountDownLatch done = new CountDownLatch(0);
+    /**
+     * The directory of the journal of the next run, or <tt>null</tt> for no journal.
+     */
+    private Path journalDirectory;
+    /**
+     * Records every request. It is created when the engine starts if there is a directory for it, and
+     * closed when the engine stops.
+     */
+    private Journal journal;
+    /**
+     * Whether the next run sends the requests without blocking.
+     */
+    private boolean async;
+    /**
+     * Sends the requests without blocking in the asynchronous mode. It is created when the engine starts
+     * and closed when the engine stops.
+     */
+    private AsyncPool asyncPool;
+    /**
+     * The budget of the hedges of the next run, or 0 if the requests are not hedged.
+     */
+    private double hedging;
+    /**
+     * Sends the hedges of the slow requests. It is created when the engine starts if hedging is on,
+     * and closed when the engine stops.
+     */
+    private Hedger hedger;
+    /**
+     * The max count of requests per second of the next run, or 0 for no cap.
+     */
+    private double rate;
+    /**
+     * Decides which course each request is sent for. It is created when the engine starts and closed
+     * when the engine stops.
+     */
+    private FairShare share;
+    /**
+     * The courses of the current run. The list is replaced when an account is added.
+     */
+    private volatile List<Enrollment> enrollments = Collections.emptyList();
+    /**
+     * Decides how many requests are sent at the same time. It is created when the engine starts and
+     * closed when the engine stops.
+     */
+    private Limiter limiter;
+    /**
+     * Stops the requests for a while when most of them fail. It is created when the engine starts and
+     * closed when the engine stops.
+     */
+    private Breaker breaker;
+    /**
+     * The keep-alive connections shared by the worker threads. It is created when the engine starts and
+     * closed when the engine stops.
+     */
+    private HttpPool pool;
+    /**
+     * Reads the course pages again when the requests start to fail. It is created when the engine starts
+     * and closed when the engine stops.
+     */
+    private Refresher refresher;
+    /**
+     * The login session of each account, shared by the requests of its courses. They are created when
+     * the engine starts or the account is added, and closed when the engine stops or the account is
+     * removed.
+     */
+    private volatile List<Session> sessions = Collections.emptyList();
+    /**
+     * The time enrolling opens of the current run, or 0 once the requests have started.
+     */
+    private volatile long openTime;
+    /**
+     * Releases the worker threads at the time enrolling opens. It is <tt>null</tt> if the engine is
+     * started at once.
+     */
+    private Thread scheduler;
+    /**
+     * The count of unfinished courses.
+     */
+    private final AtomicInteger remaining = new AtomicInteger();
+    /**
+     * A very important flag. If this flag is set to <tt>false</tt>, the <tt>while</tt> loops of the
+     * worker threads break. It is <tt>volatile</tt> so that the threads can end ASAP.
+     */
+    private volatile boolean running;
+    /**
+     * Whether the engine has warmed up for the current run.
+     */
+    private volatile boolean hot;
+    /**
+     * Counts the connections opened before a scheduled run fires. It is created when the engine starts.
+     */
+    private WarmUp warmUp;
+
+    /**
+     * Create an engine. This constructor does not create any thread or connection.
+     * @param ceiling  the max count of requests in flight
+     * @param listener receives the events of the engine
+     */
+    public Engine(int ceiling, Listener listener) {
+        this.ceiling = ceiling;
+        this.listener = listener;
+    }
+
+    /**
+     * Wait until the engine stops.
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Wait until the engine stops, or the time is out.
+     * @param timeout the max time to wait
+     * @param unit    the unit of <tt>timeout</tt>
+     * @return <tt>true</tt> if the engine has stopped
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Get the courses of the current run.
+     * @return the courses, in the order given to {@link #start(List, long)}
+     */
+    public List<Enrollment> getEnrollments() {
+        return enrollments;
+    }
+
+    /**
+     * Get the time enrolling opens of the current run, while it is waiting for the time.
+     * @return the time by the server clock in ms since the epoch, or 0 once the requests have started
+     */
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    /**
+     * Get the count of bytes of the response bodies read in the current run, until the result of each
+     * response is known. They are the bytes on the wire, which are compressed if the bodies are.
+     * @return the count of bytes
+     */
+    public long getBytesRead() {
+        long sum = 0;
+        for (LongAdder bytes : wireBytes) sum += bytes.sum();
+        return sum;
+    }
+
+    /**
+     * Get the count of bytes of the response bodies of a result read in the current run.
+     * @param result  the result
+     * @param decoded <tt>true</tt> for the bytes after they are inflated, or <tt>false</tt> for the bytes
+     *                on the wire
+     * @return the count of bytes
+     */
+    public long getBytesRead(Result result, boolean decoded) {
+        return (decoded ? decodedBytes : wireBytes)[result.ordinal()].sum();
+    }
+
+    /**
+     * Get the count of bytes of the request bodies sent in the current run. It is counted from the
+     * results of each course and the length of its current body, so it is only an estimate if the body
+     * has been refreshed.
+     * @return the count of bytes
+     */
+    public long getBytesSent() {
+        long sent = 0;
+        for (Enrollment enrollment : enrollments) {
+            long attempts = 0;
+            for (Result result : Result.values()) attempts += enrollment.counter.get(result);
+            sent += attempts * enrollment.request.getBodyLength();
+        }
+        return sent;
+    }
+
+    /**
+     * Get the hedger of the current run.
+     * @return the hedger, or <tt>null</tt> if the requests are not hedged
+     */
+    public Hedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Get the circuit breaker of the current run.
+     * @return the breaker, or <tt>null</tt> if the engine has never started
+     */
+    public Breaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Get the limiter of the current run.
+     * @return the limiter, or <tt>null</tt> if the engine has never started
+     */
+    public Limiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Get the count of logins again in the current run.
+     * @param failed <tt>true</tt> for the failed logins, or <tt>false</tt> for the successful ones
+     * @return the count of logins
+     */
+    public long getRelogins(boolean failed) {
+        long count = 0;
+        for (Session session : sessions) {
+            count += failed ? session.getFailures() : session.getGeneration();
+        }
+        return count;
+    }
+
+    /**
+     * Get the count of threads which send the requests.
+     * @return the count of worker threads, 1 in the asynchronous mode, or 0 if the engine is not running
+     */
+    public int getWorkers() {
+        return !running ? 0 : asyncPool != null ? 1 : ceiling;
+    }
+
+    /**
+     * Check if the engine has warmed up for the current run. A scheduled run is hot once its connections
+     * are opened and the parse path is trained, before it fires. A run started at once is hot if the
+     * parse path has been trained before, such as by the GUI after logging in.
+     * @return <tt>true</tt> if it is hot
+     */
+    public boolean isHot() {
+        return hot;
+    }
+
+    /**
+     * Check if the engine is running.
+     * @return <tt>true</tt> if the engine is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Choose how the requests are sent. It takes effect when the engine starts next time.
+     * @param async <tt>true</tt> to send the requests by an {@link AsyncPool} from one dispatcher thread,
+     *              or <tt>false</tt> to send them from a worker thread each. The requests are not hedged
+     *              in the asynchronous mode.
+     */
+    public synchronized void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Record every request of the next runs in a {@link Journal}. It takes effect when the engine starts
+     * next time.
+     * @param directory the directory of the journal, or <tt>null</tt> for no journal
+     */
+    public synchronized void setJournal(Path directory) {
+        journalDirectory = directory;
+    }
+
+    /**
+     * Turn hedging on or off (see {@link Hedger}). It takes effect when the engine starts next time.
+     * @param budget the max count of hedges divided by the count of requests, such as {@link
+     *               Hedger#DEFAULT_BUDGET}, or 0 to turn hedging off
+     */
+    public synchronized void setHedging(double budget) {
+        if (!(budget >= 0 && budget <= 1)) throw new IllegalArgumentException("budget: " + budget);
+        hedging = budget;
+    }
+
+    /**
+     * Cap the count of requests per second of all of the accounts. It takes effect when the engine
+     * starts next time.
+     * @param rate the max count of requests per second, or 0 for no cap
+     */
+    public synchronized void setRate(double rate) {
+        if (!(rate >= 0)) throw new IllegalArgumentException("rate: " + rate);
+        this.rate = rate;
+    }
+
+    /**
+     * Start the engine. The requests are sent at once.
+     * @param client  the <tt>CguWebClient</tt> object which provides the students data
+     * @param courses the courses to enroll
+     * @throws IOException if a request cannot be built
+     */
+    public void start(CguWebClient client, List<Course> courses) throws IOException {
+        start(client, courses, 0);
+    }
+
+    /**
+     * Start the engine, and send the requests from the time enrolling opens. Until then, the engine
+     * estimates the offset of the server clock (see {@link ClockSync}) and only sends a probe every
+     * {@link #PROBE_INTERVAL} ms. A little before the time the worker threads open their connections,
+     * and the first wave of requests is released to reach the server at the time by its clock. If a
+     * probe finds enrolling has opened early, the requests are released at once.
+     * @param client   the <tt>CguWebClient</tt> object which provides the students data
+     * @param courses  the courses to enroll
+     * @param openTime the time enrolling opens by the server clock, in ms since the epoch. The requests
+     *                 are sent at once if it has passed.
+     * @throws IOException if a request cannot be built
+     */
+    public void start(CguWebClient client, List<Course> courses, long openTime) throws IOException {
+        if (courses.isEmpty()) throw new IllegalArgumentException("No course.");
+        start(Collections.singletonList(new Account("", client, courses, 1)), openTime);
+    }
+
+    /**
+     * Start the engine for many accounts, like {@link #start(CguWebClient, List, long)} does. The
+     * requests are divided among the accounts by their weights. More accounts can join the run by {@link
+     * #add(Account)}.
+     * @param accounts the accounts, each with its own client and courses
+     * @param openTime the time enrolling opens by the server clock, in ms since the epoch. The requests
+     *                 are sent at once if it has passed.
+     * @throws IOException if a request cannot be built
+     */
+    public synchronized void start(List<Account> accounts, long openTime) throws IOException {
+        if (running) throw new IllegalStateException("The engine is running.");
+        if (accounts.isEmpty()) throw new IllegalArgumentException("No account.");
+        hedger = hedging > 0 && !async ? new Hedger(hedging, ceiling) : null;
+        //對沖的請求用額外的連線；非同步模式只有校時和探測會用到
+        pool = new HttpPool(async ? 1 : hedger == null ? ceiling : ceiling + hedger.maxInFlight, TIMEOUT);
+        List<Session> sessions = new ArrayList<>(accounts.size());
+        List<Enrollment> list = new ArrayList<>();
+        try {
+            asyncPool = async ? new AsyncPool(ceiling, TIMEOUT) : null;
+            List<String> ids = new ArrayList<>();
+            for (Account account : accounts) enroll(account, sessions, list);
+            for (Enrollment enrollment : list) ids.add(enrollment.course.id);
+            journal = journalDirectory == null ? null : Journal.create(journalDirectory, ids);
+        } catch (IOException e) {
+            if (hedger != null) hedger.close();
+            if (asyncPool != null) asyncPool.close();
+            pool.close();
+            throw e;
+        }
+        boolean scheduled = openTime > System.currentTimeMillis();
+        this.openTime = scheduled ? openTime : 0;
+        pin(list.get(0).request.uri.getHost());
+        this.sessions = Collections.unmodifiableList(sessions);
+        enrollments = Collections.unmodifiableList(list);
+        share = new FairShare(enrollments, rate);
+        remaining.set(list.size());
+        //排程的話第一波請求全部一起送出
+        limiter = scheduled ? new Limiter(ceiling, ceiling) : new Limiter(ceiling);
+        breaker = new Breaker(listener);
+        refresher = new Refresher(enrollments, listener, Refresher.DEFAULT_TTL);
+        counter.clear();
+        latency.clear();
+        for (LongAdder bytes : wireBytes) bytes.reset();
+        for (LongAdder bytes : decodedBytes) bytes.reset();
+        done = new CountDownLatch(1);
+        warmUp = new WarmUp(scheduled ? ceiling : 0);
+        hot = !scheduled && WarmUp.isTrained();
+        final CountDownLatch warm = new CountDownLatch(scheduled ? 1 : 0);
+        final CountDownLatch gate = new CountDownLatch(scheduled ? 1 : 0);
+        running = true;
+        //每個執行緒最多只會有一個請求，由limiter決定實際上同時送出的數目
+        if (async) dispatch(warm, gate);
+        else for (int n = 0; n < ceiling; n++) execute(warm, gate, n);
+        refresher.start();
+        if (hedger != null) hedger.start();
+        if (journal != null) listener.onMessage("請求紀錄：" + journal.getFiles());
+        if (scheduled) {
+            listener.onMessage("初始化完成。等待開放選課。");
+            scheduler = new Thread(() -> schedule(openTime, warm, gate), "Scheduler");
+            scheduler.start();
+        }
+        else listener.onMessage("初始化完成。開始刷課。");
+    }
+
+    /**
+     * Add an account to the current run without stopping it, so the other accounts keep their
+     * connections, their limiter and their warm-up. The account starts with the run: at once if the
+     * requests have started, or at the time enrolling opens of the run. The courses of the account are
+     * named in the journal after the ones of the start.
+     * @param account the account
+     * @throws IOException if a request cannot be built
+     */
+    public synchronized void add(Account account) throws IOException {
+        if (!running) throw new IllegalStateException("The engine is not running.");
+        List<Session> sessions = new ArrayList<>(this.sessions);
+        List<Enrollment> list = new ArrayList<>(enrollments);
+        enroll(account, sessions, list);
+        List<Enrollment> added = list.subList(enrollments.size(), list.size());
+        if (journal != null) {
+            List<String> ids = new ArrayList<>(added.size());
+            for (Enrollment enrollment : added) ids.add(enrollment.course.id);
+            journal.addCourses(ids);
+        }
+        remaining.addAndGet(added.size());
+        this.sessions = Collections.unmodifiableList(sessions);
+        enrollments = Collections.unmodifiableList(list);
+        refresher.add(added);
+        share.add(added);
+    }
+
+    /**
+     * Remove an account from the current run. No more requests are sent for its courses, and its session
+     * is closed, while the other accounts go on. The engine stops if no course is left, but {@link
+     * Listener#onDone()} is not called.
+     * @param account the account
+     * @return <tt>true</tt> if the account had unfinished courses in the run
+     */
+    public synchronized boolean remove(Account account) {
+        if (!running) return false;
+        int removed = 0;
+        Session session = null;
+        for (Enrollment enrollment : enrollments) {
+            if (enrollment.account != account) continue;
+            session = enrollment.request.session;
+            if (!enrollment.remove()) continue;
+            share.finish(enrollment);
+            removed++;
+        }
+        if (session != null) session.close();
+        if (removed != 0 && remaining.addAndGet(-removed) == 0) stop();
+        return removed != 0;
+    }
+
+    /**
+     * Stop the engine. Nothing happens if the engine is not running.
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        hot = false;
+        if (scheduler != null) scheduler.interrupt();
+        refresher.close();
+        if (hedger != null) hedger.close();
+        share.close();
+        for (Session session : sessions) session.close();
+        limiter.close();
+        breaker.close();
+        if (asyncPool != null) asyncPool.close();
+        pool.close();
+        if (journal != null) journal.close();
+        done.countDown();
+    }
+
+    /**
+     * Create the session and the requests of an account.
+     * @param sessions the sessions to add the session to
+     * @param list     the courses to add the courses of the account to
+     * @throws IOException if a request cannot be built
+     */
+    private void enroll(Account account, List<Session> sessions, List<Enrollment> list) throws
+            IOException {
+        Session session = new Session(account.client, listener, account.name.isEmpty() ? "" : account.name +
+                " ");
+        sessions.add(session);
+        for (Course course : account.courses) {
+            Request request = new Request(session, course, pool);
+            list.add(new Enrollment(account, course, request, list.size()));
+        }
+    }
+
+    /**
+     * Look up the addresses of the server and pin them in the pools, so no request waits for the DNS.
+     */
+    private void pin(String host) {
+        try {
+            InetAddress[] addresses = pool.pin(host);
+            if (asyncPool != null) asyncPool.pin(host, addresses);
+        } catch (UnknownHostException e) {
+            //找不到伺服器的話，每次連線時再查
+            listener.onMessage("無法解析伺服器位址：" + host);
+        }
+    }
+
+    /**
+     * Send a request of a course and count its result. The request is hedged if it is slow and hedging
+     * is on. If the session has expired, the account is skipped for a while for logging in again.
+     * @param limiter the limiter to report the round trip to, or <tt>null</tt>
+     * @param ticket  the ticket given by the breaker
+     * @param worker  the number of the worker thread, or <tt>-1</tt>
+     * @return the result, or <tt>null</tt> if the engine has stopped
+     */
+    private Result attempt(Enrollment enrollment, ResultClassifier classifier, Limiter limiter, long
+            ticket, int worker) {
+        Session session = enrollment.request.session;
+        long generation = session.getGeneration();
+        long begin = System.nanoTime();
+        long firstByte = 0;
+        int status = 0;
+        Result result;
+        classifier.reset();
+        HttpPost post = enrollment.request.prepare();
+        //探測請求不對沖，也不算進對沖的延遲
+        Hedger.Hedge hedge = hedger == null || worker < 0 ? null : hedger.watch(enrollment.request, post);
+        try {
+            CloseableHttpResponse response = enrollment.request.execute(post);
+            status = response.getStatusLine().getStatusCode();
+            InputStream in = Request.content(response);
+            firstByte = System.nanoTime() - begin;
+            result = classifier.classify(in, Request.encoding(response));
+        } catch (SessionExpiredException e) {
+            result = Result.EXPIRED;
+        } catch (IOException | IllegalStateException e) {
+            //The pool throws IllegalStateException once it is closed by stop().
+            result = Result.FAIL;
+        }
+        if (hedge != null) result = hedge.settle(result);
+        if (!record(enrollment, result, firstByte, System.nanoTime() - begin, limiter, ticket, status,
+                classifier.getBytes(), classifier.getDecodedBytes(), worker)) return null;
+        if (result == Result.EXPIRED) {
+            //等待重新登入，不要繼續送出一定會失敗的請求
+            share.hold(enrollment, generation);
+            session.expired(generation);
+        }
+        return result;
+    }
+
+    /**
+     * Start the dispatcher thread of the asynchronous mode, which sends requests repeatly by the {@link
+     * AsyncPool} until the engine stops. It only waits for the breaker, the rate cap and the limiter,
+     * and the results are counted by the threads of the pool.
+     * @param warm released when the connections should be opened
+     * @param gate released when the requests should start
+     */
+    private void dispatch(CountDownLatch warm, CountDownLatch gate) {
+        final Limiter limiter = this.limiter;
+        final Breaker breaker = this.breaker;
+        final FairShare share = this.share;
+        final List<Enrollment> enrollments = this.enrollments;
+        final AsyncPool pool = asyncPool;
+        final WarmUp warmUp = this.warmUp;
+        new Thread(() -> {
+            try {
+                warm.await();
+                if (gate.getCount() != 0) {
+                    warmUp.connect(pool, enrollments.get(0).request.uri, ceiling);
+                }
+                gate.await();
+                while (running) {
+                    final long ticket = breaker.acquire();
+                    if (ticket == Breaker.STOPPED) break;
+                    share.pace();
+                    Enrollment enrollment = share.next();
+                    if (enrollment == null || !limiter.acquire()) break;
+                    Session session = enrollment.request.session;
+                    long generation = session.getGeneration();
+                    enrollment.request.send(pool, (result, firstByte, total, status, bytes, decoded) -> {
+                        if (!record(enrollment, result, firstByte, total, limiter, ticket, status, bytes,
+                                decoded, 0)) {
+                            return;
+                        }
+                        if (result == Result.EXPIRED) {
+                            share.hold(enrollment, generation);
+                            session.expired(generation);
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                //The engine has stopped.
+            }
+        }, "Dispatcher").start();
+    }
+
+    /**
+     * Start a worker thread, which sends requests repeatly until the engine stops.
+     * @param warm released when the worker thread should open its connection
+     * @param gate   released when the worker thread should start sending requests
+     * @param worker the number of the worker thread
+     */
+    private void execute(CountDownLatch warm, CountDownLatch gate, int worker) {
+        new Thread(() -> {
+            final ResultClassifier classifier = new ResultClassifier();
+            final Limiter limiter = this.limiter;
+            final Breaker breaker = this.breaker;
+            final FairShare share = this.share;
+            final List<Enrollment> enrollments = this.enrollments;
+            final WarmUp warmUp = this.warmUp;
+            try {
+                warm.await();
+                if (gate.getCount() != 0) warmUp.connect(pool, enrollments.get(0).request.uri);
+                gate.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            while (running) {
+                try {
+                    //網路斷線時在這裡等，而不是一直送出失敗的請求
+                    long ticket = breaker.acquire();
+                    if (ticket == Breaker.STOPPED) break;
+                    share.pace();
+                    Enrollment enrollment = share.next();
+                    if (enrollment == null || !limiter.acquire()) break;
+                    if (attempt(enrollment, classifier, limiter, ticket, worker) == null) break;
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Count the result of a request, report it to the breaker, and write it to the journal if there is
+     * one.
+     * @param firstByte the time to the first byte in ns, or 0 if there is no response
+     * @param elapsed   the total time in ns
+     * @param limiter   the limiter to report the round trip to, or <tt>null</tt>
+     * @param ticket    the ticket given by the breaker, or {@link Breaker#NO_PROBE} for the probes
+     * @param status    the HTTP status, or 0 if there is no response
+     * @param bytes     the count of bytes of the body read
+     * @param decoded   the count of those bytes after they are inflated
+     * @param worker    the number of the worker thread, 0 in the asynchronous mode and <tt>-1</tt> for
+     *                  the probes
+     * @return <tt>false</tt> if the engine has stopped and the result is not counted
+     */
+    private boolean record(Enrollment enrollment, Result result, long firstByte, long elapsed, Limiter
+            limiter, long ticket, int status, long bytes, long decoded, int worker) {
+        //伺服器有回應的錯誤頁（例如表單過期）交給 Refresher，不算網路壅塞或異常
+        boolean dropped = result == Result.FAIL && (status == 0 || status >= 500);
+        if (limiter != null) limiter.release(elapsed, dropped);
+        if (!running) return false;
+        breaker.record(ticket, dropped);
+        if (journal != null) journal.record(enrollment.index, result, firstByte, elapsed, status, bytes,
+                worker);
+        latency.record(result, firstByte == 0 ? elapsed : firstByte, elapsed);
+        wireBytes[result.ordinal()].add(bytes);
+        decodedBytes[result.ordinal()].add(decoded);
+        counter.add(result);
+        if (enrollment.add(result)) finish(enrollment);
+        return true;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[Result.values().length];
+        for (int i = 0; i < adders.length; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private void finish(Enrollment enrollment) {
+        share.finish(enrollment);
+        listener.onFinish(enrollment);
+        if (remaining.decrementAndGet() == 0) {
+            stop();
+            listener.onDone();
+        }
+    }
+
+    /**
+     * Wait for the time enrolling opens, and then release the worker threads. It trains the parse path
+     * while waiting, and the worker threads open their connections {@link #WARM_UP} ms before. It runs on
+     * the scheduler thread.
+     */
+    private void schedule(long openTime, CountDownLatch warm, CountDownLatch gate) {
+        final ResultClassifier classifier = new ResultClassifier();
+        final WarmUp warmUp = this.warmUp;
+        try {
+            long offset = 0;
+            long rtt = 0;
+            try {
+                ClockSync clock = ClockSync.measure(pool, enrollments.get(0).request.uri);
+                offset = clock.offset;
+                rtt = clock.rtt;
+                listener.onMessage(String.format("伺服器與本機的時間差 %+d ms，誤差 ±%d ms，來回 %d ms。",
+                        clock.offset, clock.error, clock.rtt));
+            } catch (IOException | IllegalStateException e) {
+                listener.onMessage("無法校正時間，使用本機時間。" + e.getMessage());
+            }
+            //讓第一波請求在伺服器的開放時間抵達
+            long fireAt = openTime - offset - rtt / 2;
+            listener.onMessage(String.format("將於 %tT.%<tL 開始刷課。", openTime));
+            long parse = WarmUp.train(Math.min(WarmUp.BUDGET, fireAt - WARM_UP - System.currentTimeMillis()));
+            long probeAt = 0;
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (now >= fireAt - WARM_UP) break;
+                if (now < probeAt) {
+                    Thread.sleep(Math.min(probeAt, fireAt - WARM_UP) - now);
+                    continue;
+                }
+                probeAt = now + PROBE_INTERVAL;
+                Enrollment enrollment = share.next();
+                Result result = enrollment == null ? null : attempt(enrollment, classifier, null, Breaker
+                        .NO_PROBE, -1);
+                if (result == null) return;
+                if (result != Result.TIME_INCORRECT && result != Result.FAIL && result != Result.EXPIRED) {
+                    listener.onMessage("已經開放選課了。");
+                    fireAt = now;
+                    break;
+                }
+            }
+            warm.countDown();
+            int opened = warmUp.await(fireAt - SPIN - System.currentTimeMillis());
+            if (running) {
+                hot = parse != 0;
+                listener.onMessage(String.format("預熱完成：開啟 %d/%d 條連線，%s。", opened, ceiling, parse == 0 ?
+                        "來不及預熱解析" : "解析一頁 " + TimeUnit.NANOSECONDS.toMicros(parse) + " µs"));
+            }
+            long wait = fireAt - System.currentTimeMillis();
+            long target = System.nanoTime() + wait * 1_000_000;
+            if (wait > SPIN) Thread.sleep(wait - SPIN);
+            while (running && System.nanoTime() < target) Thread.yield();
+            this.openTime = 0;
+            gate.countDown();
+            if (running) listener.onMessage("開始刷課。");
+        } catch (InterruptedException e) {
+            //The engine has stopped.
+        } finally {
+            warm.countDown();
+            gate.countDown();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package app;
+
+import cgu.Course;
+import notify.Result;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents one course an {@link Engine} is enrolling for an {@link Account}. Each
+ * enrollment has its own {@link Request} and {@link Counter}, while the worker threads and the
+ * connections are shared by all of the enrollments of the engine.
+ */
+public class Enrollment {
+
+    /**
+     * The account the course is enrolled for.
+     */
+    public final Account account;
+    /**
+     * The course to enroll.
+     */
+    public final Course course;
+    /**
+     * The counts of the results of this course.
+     */
+    public final Counter counter = new Counter();
+    /**
+     * The request of this course.
+     */
+    final Request request;
+    /**
+     * The position of this course in the courses of the engine.
+     */
+    final int index;
+    /**
+     * The terminal result, or <tt>null</tt> if this course is still being enrolled.
+     */
+    private volatile Result result;
+    /**
+     * Set once this course is finished or removed, so that the engine counts it down only once.
+     */
+    private final AtomicBoolean settled = new AtomicBoolean();
+    private volatile boolean removed;
+
+    Enrollment(Account account, Course course, Request request, int index) {
+        this.account = account;
+        this.course = course;
+        this.request = request;
+        this.index = index;
+    }
+
+    /**
+     * Get the terminal result of this course.
+     * @return the terminal result, or <tt>null</tt> if this course is still being enrolled
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Check if this course is finished.
+     * @return <tt>true</tt> if a terminal result has been got, or the course has been removed from the
+     * engine
+     */
+    public boolean isFinished() {
+        return result != null || removed;
+    }
+
+    /**
+     * Add a result of this course.
+     * @param result the result
+     * @return <tt>true</tt> if it is the first terminal result, which finishes this course, and the course
+     * has not been removed
+     */
+    boolean add(Result result) {
+        if (!counter.add(result)) return false;
+        this.result = result;
+        return settled.compareAndSet(false, true);
+    }
+
+    /**
+     * Stop enrolling this course, such as when its job is cancelled. The requests in flight are still
+     * counted.
+     * @return <tt>true</tt> if the course was not finished
+     */
+    boolean remove() {
+        removed = true;
+        return settled.compareAndSet(false, true);
+    }
+}
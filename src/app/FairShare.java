@@ -0,0 +1,187 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This class decides which course the next request of an {@link Engine} is sent for, when the
+ * engine enrolls for many {@link Account}s. The accounts share the requests by smooth weighted round
+ * robin, so each account gets the share of its weight, and the requests of an account are spread out
+ * instead of sent in bursts. The courses of an account take turns. An account whose courses are all
+ * finished is skipped, and its share goes to the others.</p> <p>When the session of an account has
+ * expired, the account is skipped until it has logged in again, or for a while if the login fails, so
+ * the requests go to the other accounts instead of waiting. Only when every account is waiting does the
+ * worker wait too.</p> <p>All of the requests can also be capped by a global rate, which is spread
+ * across the accounts by the same weights. This class is thread-safe.</p>
+ */
+class FairShare {
+
+    /**
+     * The max time in ms an account is skipped after its session has expired.
+     */
+    static final long HOLD = 3000;
+
+    private final List<Lane> lanes = new ArrayList<>();
+    /**
+     * The time in ns between two requests, or 0 if there is no cap.
+     */
+    private final long interval;
+    /**
+     * The time in ns the next request may be sent at.
+     */
+    private final AtomicLong slot = new AtomicLong(Long.MIN_VALUE);
+    private volatile boolean closed;
+
+    /**
+     * Create a fair share.
+     * @param enrollments the courses, each of which knows its account
+     * @param rate        the max count of requests per second of all of the accounts, or 0 for no cap
+     */
+    FairShare(List<Enrollment> enrollments, double rate) {
+        if (!(rate >= 0)) throw new IllegalArgumentException("rate: " + rate);
+        interval = rate == 0 ? 0 : (long) (1e9 / rate);
+        add(enrollments);
+    }
+
+    /**
+     * Add the courses of the accounts which join while the requests are being sent. A removed course is
+     * skipped as a finished one.
+     * @param enrollments the courses, each of which knows its account
+     */
+    synchronized void add(List<Enrollment> enrollments) {
+        for (Enrollment enrollment : enrollments) {
+            Lane lane = null;
+            for (Lane l : lanes) if (l.account == enrollment.account) lane = l;
+            if (lane == null) lanes.add(lane = new Lane(enrollment.account, enrollment.request.session));
+            lane.enrollments.add(enrollment);
+            lane.unfinished++;
+        }
+    }
+
+    /**
+     * Count a course as finished, so its account is skipped once all of its courses are. Call it once
+     * for each course, when {@link Enrollment#add(notify.Result)} or {@link Enrollment#remove()} returns
+     * <tt>true</tt>.
+     * @param enrollment the course which is finished or removed
+     */
+    synchronized void finish(Enrollment enrollment) {
+        for (Lane lane : lanes) if (lane.account == enrollment.account) lane.unfinished--;
+    }
+
+    /**
+     * Wait until the next request may be sent under the rate cap. It returns at once if there is no cap.
+     */
+    void pace() throws InterruptedException {
+        if (interval == 0) return;
+        long now = System.nanoTime();
+        //每個請求預約一個時段，所以不需要鎖
+        long at = slot.accumulateAndGet(now, (last, n) -> Math.max(last, n) + interval) - interval;
+        long wait = at - System.nanoTime();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Take the course the next request is sent for. If the session of every unfinished account has
+     * expired, wait a while for one of them to log in again.
+     * @return the course, or <tt>null</tt> if every course is finished
+     */
+    Enrollment next() throws InterruptedException {
+        while (!closed) {
+            Lane waiting = null;
+            long generation;
+            long until;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                Lane best = null;
+                int total = 0;
+                boolean unfinished = false;
+                for (Lane lane : lanes) {
+                    if (lane.unfinished == 0) continue;
+                    unfinished = true;
+                    if (lane.isHeld(now)) {
+                        if (waiting == null) waiting = lane;
+                        continue;
+                    }
+                    lane.current += lane.account.weight;
+                    total += lane.account.weight;
+                    if (best == null || lane.current > best.current) best = lane;
+                }
+                if (!unfinished) return null;
+                if (best != null) {
+                    best.current -= total;
+                    Enrollment enrollment = best.next();
+                    //最後一門課可能剛好被其他執行緒完成
+                    if (enrollment != null) return enrollment;
+                    continue;
+                }
+                generation = waiting.heldGeneration;
+                until = waiting.heldUntil;
+            }
+            waiting.session.await(generation, Math.max(1, until - System.currentTimeMillis()));
+        }
+        return null;
+    }
+
+    /**
+     * Stop handing out courses. The threads waiting in {@link #next()} return <tt>null</tt> once they
+     * wake up, which they do when the sessions are closed.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Skip the account of a course until its session is replaced, or for {@link #HOLD} ms.
+     * @param enrollment the course whose request has found the session expired
+     * @param generation the generation of the session the request was sent with
+     */
+    synchronized void hold(Enrollment enrollment, long generation) {
+        for (Lane lane : lanes) {
+            if (lane.account != enrollment.account || lane.session.getGeneration() != generation) continue;
+            lane.heldGeneration = generation;
+            lane.heldUntil = System.currentTimeMillis() + HOLD;
+        }
+    }
+
+    /**
+     * The courses of an account.
+     */
+    private static final class Lane {
+
+        private final Account account;
+        private final Session session;
+        private final List<Enrollment> enrollments = new ArrayList<>();
+        /**
+         * The current weight of smooth weighted round robin.
+         */
+        private int current;
+        private int cursor;
+        /**
+         * The count of courses which are not finished yet, so that a finished account is skipped
+         * without looking at its courses.
+         */
+        private int unfinished;
+        private long heldGeneration = -1;
+        private long heldUntil;
+
+        private Lane(Account account, Session session) {
+            this.account = account;
+            this.session = session;
+        }
+
+        private boolean isHeld(long now) {
+            return heldGeneration == session.getGeneration() && now < heldUntil;
+        }
+
+        private Enrollment next() {
+            int size = enrollments.size();
+            for (int n = 0; n < size; n++) {
+                Enrollment enrollment = enrollments.get(Math.floorMod(cursor++, size));
+                if (!enrollment.isFinished()) return enrollment;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package app;
+
+import notify.Result;
+import notify.SessionExpiredException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This class cuts the tail latency of the requests of an {@link Engine} by hedging. A few requests
+ * are much slower than the others, and a worker thread waits for each of them for up to the whole
+ * timeout. If a request has not been answered after the 95th percentile of the round trips, the hedger
+ * sends the same request again on another connection of the pool. The response which comes first is
+ * taken, and the slower request is aborted.</p> <p>The percentile is read from the hedger's own
+ * histograms of the last {@link #WINDOW} ms or so. Only the first requests which are answered before
+ * their hedges are recorded, so the failures, the probes and the hedges do not count, and the delay
+ * follows the server as it speeds up or slows down.</p> <p>The hedges are limited by a budget, a
+ * small part of all of the requests, so the count of requests sent is nearly the same as without
+ * hedging. They do not go through the {@link Limiter}.</p> <p>The hedges are sent from their own
+ * threads. This class is thread-safe.</p>
+ * @see Engine#setHedging(double)
+ */
+public class Hedger {
+
+    /**
+     * The default budget, the max count of hedges divided by the count of requests.
+     */
+    public static final double DEFAULT_BUDGET = 0.05;
+    /**
+     * The requests are not hedged until this many round trips are recorded.
+     */
+    private static final int MIN_SAMPLES = 50;
+    private static final double PERCENTILE = 95;
+    /**
+     * The delay before a hedge is never shorter than this many microseconds.
+     */
+    private static final long MIN_DELAY = 1000;
+    /**
+     * The interval in ms between two updates of the delay.
+     */
+    private static final long PERIOD = 250;
+    /**
+     * The time in ms a histogram of the round trips is recorded for before it is replaced.
+     */
+    private static final long WINDOW = 4000;
+    private static final ThreadLocal<ResultClassifier> CLASSIFIER = ThreadLocal.withInitial
+            (ResultClassifier::new);
+
+    /**
+     * The max count of hedges divided by the count of requests.
+     */
+    public final double budget;
+    /**
+     * The max count of hedges in flight, which is also the count of extra connections needed.
+     */
+    final int maxInFlight;
+    /**
+     * The round trips in microseconds recorded since {@link #rotated}.
+     */
+    private volatile Histogram current = new Histogram();
+    /**
+     * The round trips of the window before, which is used until {@link #current} has enough samples.
+     * It is only used by the timer thread, like {@link #rotated}.
+     */
+    private Histogram previous = new Histogram();
+    private long rotated = System.currentTimeMillis();
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong wins = new AtomicLong();
+    /**
+     * The time in microseconds before a request is hedged, or <tt>-1</tt> if there are not enough
+     * samples yet.
+     */
+    private volatile long delay = -1;
+    private int inFlight;
+    private long sent;
+
+    /**
+     * Create a hedger. It does not start until {@link #start()} is called.
+     * @param budget  the max count of hedges divided by the count of requests, from 0 to 1
+     * @param ceiling the max count of requests in flight of the engine
+     */
+    Hedger(double budget, int ceiling) {
+        if (!(budget > 0 && budget <= 1)) throw new IllegalArgumentException("budget: " + budget);
+        this.budget = budget;
+        maxInFlight = Math.max(1, ceiling / 4);
+        //多一個執行緒給計時器，所以所有的對沖都在等待時還是可以更新延遲
+        executor = new ScheduledThreadPoolExecutor(maxInFlight + 1, r -> {
+            Thread thread = new Thread(r, "Hedger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Stop the hedger. The hedges in flight are aborted when the pool is closed.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the current delay before a request is hedged.
+     * @return the delay in ms, or <tt>-1</tt> if the requests are not hedged yet
+     */
+    public long getDelay() {
+        long delay = this.delay;
+        return delay < 0 ? -1 : delay / 1000;
+    }
+
+    /**
+     * Get the count of hedges sent.
+     * @return the count of hedges sent
+     */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * Get the count of hedges which were answered before the first request.
+     * @return the count of hedges which won
+     */
+    public long getWins() {
+        return wins.get();
+    }
+
+    /**
+     * Start updating the delay.
+     */
+    void start() {
+        executor.scheduleAtFixedRate(this::update, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Watch a request which is about to be sent, and hedge it if it is not answered in time. The worker
+     * thread must call {@link Hedge#settle(Result)} when the request is done, which also records its
+     * round trip.
+     * @param request the request
+     * @param post    the <tt>POST</tt> built by {@link Request#prepare()} which is about to be sent
+     * @return the hedge, which is never sent if there are not enough round trips recorded yet
+     */
+    Hedge watch(Request request, HttpPost post) {
+        requests.incrementAndGet();
+        Hedge hedge = new Hedge(request, post);
+        long delay = this.delay;
+        if (delay < 0) return hedge;
+        synchronized (hedge) {
+            try {
+                hedge.future = executor.schedule(hedge, delay, TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                //The hedger is closed.
+            }
+        }
+        return hedge;
+    }
+
+    private synchronized boolean acquire() {
+        if (inFlight >= maxInFlight || sent + 1 > budget * requests.get()) return false;
+        inFlight++;
+        sent++;
+        return true;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+    }
+
+    private void update() {
+        long now = System.currentTimeMillis();
+        if (now - rotated >= WINDOW) {
+            //換新的直方圖而不是清空，工作執行緒可能正在記錄
+            previous = current;
+            current = new Histogram();
+            rotated = now;
+        }
+        Histogram histogram = current.getCount() >= MIN_SAMPLES ? current : previous;
+        if (histogram.getCount() >= MIN_SAMPLES) delay = Math.max(MIN_DELAY, histogram.getPercentile
+                (PERCENTILE));
+    }
+
+    /**
+     * A request which may be hedged. The first request is sent by the worker thread, and the hedge by a
+     * thread of the hedger.
+     */
+    final class Hedge implements Runnable {
+
+        private final long begin = System.nanoTime();
+        private final Request request;
+        private final HttpPost primary;
+        private HttpPost copy;
+        private ScheduledFuture<?> future;
+        /**
+         * The result of the hedge if it is answered first.
+         */
+        private Result result;
+        private boolean settled;
+
+        private Hedge(Request request, HttpPost primary) {
+            this.request = request;
+            this.primary = primary;
+        }
+
+        @Override
+        public void run() {
+            HttpPost copy;
+            synchronized (this) {
+                if (settled || !acquire()) return;
+                copy = this.copy = request.prepare();
+            }
+            Result result;
+            try {
+                CloseableHttpResponse response = request.execute(copy);
+                result = CLASSIFIER.get().classify(Request.content(response), Request.encoding(response));
+            } catch (SessionExpiredException e) {
+                result = Result.EXPIRED;
+            } catch (IOException | IllegalStateException e) {
+                //Also thrown when the worker thread has aborted the hedge.
+                result = Result.FAIL;
+            } finally {
+                release();
+            }
+            synchronized (this) {
+                //失敗的對沖不算，繼續等第一個請求
+                if (settled || result == Result.FAIL) return;
+                settled = true;
+                this.result = result;
+            }
+            wins.incrementAndGet();
+            primary.abort();
+        }
+
+        /**
+         * Called by the worker thread when the first request is done. If the hedge has been answered
+         * first, its result is taken. Otherwise the hedge is cancelled, or aborted if it has been sent,
+         * and the round trip of the first request is recorded unless it has failed.
+         * @param result the result of the first request, which is {@link Result#FAIL} if it has been
+         *               aborted
+         * @return the result of the request which is answered first
+         */
+        Result settle(Result result) {
+            HttpPost copy;
+            synchronized (this) {
+                if (settled) return this.result;
+                settled = true;
+                if (future != null) future.cancel(false);
+                copy = this.copy;
+            }
+            if (copy != null) copy.abort();
+            if (result != Result.FAIL) current.record((System.nanoTime() - begin) / 1000);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package app;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>This class records how values, usually latencies in microseconds, are distributed. It is
+ * lock-free and thread-safe.</p> <p>The buckets are logarithmic like HdrHistogram's: each power of two
+ * is split into {@link #SUB_COUNT} linear buckets, so a value read back is at most about 3% larger than
+ * the value recorded. Values under {@link #SUB_COUNT} are exact.</p>
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * Values larger than or equal to <tt>2^MAX_EXP</tt> are recorded as <tt>2^MAX_EXP - 1</tt>.
+     */
+    private static final int MAX_EXP = 40;
+    private static final long MAX_VALUE = (1L << MAX_EXP) - 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXP - SUB_BITS + 1) * SUB_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) - SUB_COUNT;
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Get the smallest value that is recorded in the same bucket.
+     */
+    private static long lowOf(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+    }
+
+    /**
+     * Get the largest value that is recorded in the same bucket.
+     */
+    private static long valueOf(int index) {
+        if (index < SUB_COUNT) return index;
+        return lowOf(index) + (1L << (index / SUB_COUNT - 1)) - 1;
+    }
+
+    /**
+     * Record a value.
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        else if (value > MAX_VALUE) value = MAX_VALUE;
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) ;
+    }
+
+    /**
+     * Get the count of values recorded.
+     * @return the count of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the counts of values not larger than each of the bounds, in one pass over the buckets. A
+     * bucket is counted if its largest value is not larger than the bound. Values recorded while this
+     * method runs may or may not be counted.
+     * @param bounds the bounds in ascending order
+     * @return the counts, in the order of the bounds
+     */
+    public long[] getCounts(long[] bounds) {
+        long[] counts = new long[bounds.length];
+        long seen = 0;
+        int b = 0;
+        for (int i = 0; i < buckets.length() && b < bounds.length; i++) {
+            while (b < bounds.length && valueOf(i) > bounds[b]) counts[b++] = seen;
+            seen += buckets.get(i);
+        }
+        while (b < bounds.length) counts[b++] = seen;
+        return counts;
+    }
+
+    /**
+     * Get the sum of the values recorded, estimated by the middle of the bucket of each value.
+     * @return the estimated sum
+     */
+    public long getSum() {
+        long sum = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            long n = buckets.get(i);
+            if (n != 0) sum += n * ((lowOf(i) + valueOf(i)) / 2);
+        }
+        return sum;
+    }
+
+    /**
+     * Get the largest value recorded.
+     * @return the largest value recorded, or 0 if there is none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value at a given percentile. Values recorded while this method runs may or may not be
+     * counted.
+     * @param percentile the percentile, from 0 to 100
+     * @return the value at that percentile, or 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget all of the values. Do not call this method while other threads are recording.
+     */
+    public void clear() {
+        for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+        count.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,251 @@
+package app;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>A small streaming HTML scanner. It reads the page once, one char at a time, and tells a {@link
+ * Handler} about every tag and every piece of text. No document tree is built.</p> <p>It is not a full
+ * HTML parser. It only knows enough to read the ASP.NET pages of CGU's website: tags, quoted and
+ * unquoted attributes, comments, the contents of <tt>script</tt> and <tt>style</tt> which are skipped,
+ * and the common character references.</p>
+ * @see Page
+ */
+class HtmlScanner {
+
+    /**
+     * Receives the tags and the texts found by {@link HtmlScanner}.
+     */
+    interface Handler {
+
+        /**
+         * Called for an end tag.
+         * @param name the tag name in lower case
+         */
+        void endTag(String name);
+
+        /**
+         * Called for a start tag.
+         * @param name       the tag name in lower case
+         * @param attributes the attributes, names in lower case and values decoded
+         */
+        void startTag(String name, Map<String, String> attributes);
+
+        /**
+         * Called for a piece of text between two tags.
+         * @param text the text, decoded
+         */
+        void text(String text);
+    }
+
+    private final Handler handler;
+    private final Reader in;
+    private final StringBuilder text = new StringBuilder();
+    /**
+     * A char read but not used yet, or <tt>-2</tt> if there is none.
+     */
+    private int pushed = -2;
+
+    private HtmlScanner(Reader in, Handler handler) {
+        this.in = in;
+        this.handler = handler;
+    }
+
+    /**
+     * Scan a page. The reader is not closed.
+     * @param in      the page, it should be buffered
+     * @param handler receives the tags and the texts
+     */
+    static void scan(Reader in, Handler handler) throws IOException {
+        new HtmlScanner(in, handler).scan();
+    }
+
+    /**
+     * Decode the character references of a text, such as <tt>&amp;amp;</tt> and <tt>&amp;#39;</tt>.
+     * @param s the text
+     * @return the decoded text
+     */
+    static String decode(String s) {
+        int amp = s.indexOf('&');
+        if (amp == -1) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        sb.append(s, 0, amp);
+        for (int i = amp; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int semi;
+            if (c != '&' || (semi = s.indexOf(';', i)) == -1 || semi - i > 10) {
+                sb.append(c);
+                continue;
+            }
+            String entity = s.substring(i + 1, semi);
+            String decoded = decodeEntity(entity);
+            if (decoded == null) sb.append(c);
+            else {
+                sb.append(decoded);
+                i = semi;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String decodeEntity(String entity) {
+        switch (entity) {
+        case "amp":
+            return "&";
+        case "lt":
+            return "<";
+        case "gt":
+            return ">";
+        case "quot":
+            return "\"";
+        case "apos":
+            return "'";
+        case "nbsp":
+            return " ";
+        }
+        try {
+            if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                return new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+            }
+            if (entity.startsWith("#")) return new String(Character.toChars(Integer.parseInt(entity
+                    .substring(1))));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f';
+    }
+
+    private void flushText() {
+        if (text.length() == 0) return;
+        handler.text(decode(text.toString()));
+        text.setLength(0);
+    }
+
+    private int read() throws IOException {
+        if (pushed != -2) {
+            int c = pushed;
+            pushed = -2;
+            return c;
+        }
+        return in.read();
+    }
+
+    private void scan() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') {
+                text.append((char) c);
+                continue;
+            }
+            int next = read();
+            if (next == '/') {
+                flushText();
+                handler.endTag(readName(read()));
+                skipTo('>');
+            }
+            else if (next == '!' || next == '?') {
+                flushText();
+                skipComment();
+            }
+            else if (Character.isLetter(next)) {
+                flushText();
+                String name = readName(next);
+                handler.startTag(name, readAttributes());
+                if (name.equals("script") || name.equals("style")) skipRaw(name);
+            }
+            else {
+                text.append('<');
+                if (next != -1) pushed = next;
+            }
+        }
+        flushText();
+    }
+
+    private Map<String, String> readAttributes() throws IOException {
+        Map<String, String> attributes = new HashMap<>();
+        int c = read();
+        while (true) {
+            while (isSpace(c) || c == '/') c = read();
+            if (c == '>' || c == -1) return attributes;
+            StringBuilder name = new StringBuilder();
+            while (c != -1 && c != '=' && c != '>' && c != '/' && !isSpace(c)) {
+                name.append(Character.toLowerCase((char) c));
+                c = read();
+            }
+            while (isSpace(c)) c = read();
+            if (c != '=') {
+                attributes.put(name.toString(), "");
+                continue;
+            }
+            c = read();
+            while (isSpace(c)) c = read();
+            StringBuilder value = new StringBuilder();
+            if (c == '"' || c == '\'') {
+                int quote = c;
+                while ((c = read()) != -1 && c != quote) value.append((char) c);
+                c = read();
+            }
+            else {
+                while (c != -1 && c != '>' && !isSpace(c)) {
+                    value.append((char) c);
+                    c = read();
+                }
+            }
+            attributes.put(name.toString(), decode(value.toString()));
+        }
+    }
+
+    private String readName(int c) throws IOException {
+        StringBuilder name = new StringBuilder();
+        while (c != -1 && c != '>' && c != '/' && !isSpace(c)) {
+            name.append(Character.toLowerCase((char) c));
+            c = read();
+        }
+        pushed = c;
+        return name.toString();
+    }
+
+    private void skipComment() throws IOException {
+        int c = read();
+        if (c != '-') {
+            pushed = c;
+            skipTo('>');
+            return;
+        }
+        int dashes = 0;
+        while ((c = read()) != -1) {
+            if (c == '>' && dashes >= 2) return;
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    /**
+     * Skip the contents of a <tt>script</tt> or <tt>style</tt> element, and its end tag.
+     */
+    private void skipRaw(String name) throws IOException {
+        final String end = "</" + name;
+        int matched = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (Character.toLowerCase((char) c) == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    skipTo('>');
+                    handler.endTag(name);
+                    return;
+                }
+            }
+            else matched = c == '<' ? 1 : 0;
+        }
+    }
+
+    private void skipTo(char target) throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != target) ;
+    }
+}
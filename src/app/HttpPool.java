@@ -0,0 +1,114 @@
+package app;
+
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>This class owns the keep-alive connections to CGU's server used by {@link Request}. The pool is
+ * bounded, so there are never more connections than worker threads.</p> <p>All of the TLS connections
+ * are created by the same <tt>SSLContext</tt>, so the TLS sessions are resumed instead of doing a full
+ * handshake each time. A connection idle for longer than {@link #VALIDATE_AFTER} ms is checked before it
+ * is reused. The address of a host can be pinned by {@link #pin(String)}, so a new connection does not
+ * look up the DNS again.</p> <p>The responses are not inflated by the client. A compressed body is read
+ * as it is sent and inflated by {@link ResultClassifier}, so the bytes on the wire can be counted.</p>
+ * <p>Remember to close the pool if it is not used. Call {@link #close()} method.</p>
+ * @see Request
+ */
+public class HttpPool implements Closeable {
+
+    /**
+     * An idle connection is checked if it is stale after this many milliseconds.
+     */
+    private static final int VALIDATE_AFTER = 1000;
+
+    /**
+     * The real client that sends the requests. It is only package-visible and final.
+     */
+    final CloseableHttpClient client;
+    private final PoolingHttpClientConnectionManager manager;
+    /**
+     * The pinned addresses, by host.
+     */
+    private final Map<String, InetAddress[]> pinned = new ConcurrentHashMap<>();
+
+    /**
+     * Create a pool.
+     * @param size    max count of connections, usually the count of worker threads
+     * @param timeout connect and read timeout in ms
+     */
+    public HttpPool(int size, int timeout) {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", new
+                        SSLConnectionSocketFactory(SSLContexts.createDefault())).build();
+        DnsResolver resolver = host -> {
+            InetAddress[] addresses = pinned.get(host);
+            return addresses != null ? addresses.clone() : InetAddress.getAllByName(host);
+        };
+        manager = new PoolingHttpClientConnectionManager(registry, resolver);
+        manager.setMaxTotal(size);
+        manager.setDefaultMaxPerRoute(size);
+        manager.setValidateAfterInactivity(VALIDATE_AFTER);
+        RequestConfig config = RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout
+                (timeout).setConnectionRequestTimeout(timeout).setRedirectsEnabled(false).build();
+        client = HttpClients.custom().setConnectionManager(manager).setDefaultRequestConfig(config)
+                .disableCookieManagement().disableAutomaticRetries().disableContentCompression().build();
+    }
+
+    /**
+     * Send a <tt>HEAD</tt> request without any cookie. It opens a connection if there is no idle one, and
+     * leaves the connection in the pool, so it can be used to warm the pool up.
+     * @param uri  the uri
+     * @param name the name of a response header
+     * @return the value of the header, or <tt>null</tt> if there is no such header
+     */
+    String head(URI uri, String name) throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpHead(uri))) {
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+    }
+
+    /**
+     * Look up the addresses of a host, and use them for every new connection to the host from now on.
+     * @param host the host
+     * @return the addresses
+     * @throws UnknownHostException if the host cannot be looked up
+     */
+    InetAddress[] pin(String host) throws UnknownHostException {
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        pinned.put(host, addresses);
+        return addresses;
+    }
+
+    /**
+     * Close the pool and all of its connections.
+     */
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
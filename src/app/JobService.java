@@ -0,0 +1,458 @@
+package app;
+
+import cgu.Course;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import notify.LoginFailException;
+import notify.Result;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>This class runs the jobs of a {@link JobStore} on one {@link Engine}, so that they are resumed
+ * within seconds when the JVM starts again after a crash. Every active job is an {@link Account} of the
+ * engine. When a job is submitted, its account is added to the running engine, and when it is cancelled
+ * its account is removed, so the other jobs keep their connections and their warm-up. When the engine is
+ * started, it waits for the earliest time enrolling opens among the active jobs, unless one of them
+ * should start at once.</p> <p>The cookies of each job are saved in the store, and they are used instead
+ * of logging in again when the job is resumed, as long as the server still takes them.</p> <p>Jobs can
+ * be submitted, listed and cancelled by a control API on <tt>127.0.0.1</tt> (see {@link #serve(int)}).
+ * Every request needs the header <tt>Authorization: Bearer TOKEN</tt>, where <tt>TOKEN</tt> is read from
+ * the file of {@link JobStore#getTokenFile()}, so other users of the machine cannot submit jobs or read
+ * them:</p> <ul> <li><tt>GET /jobs</tt> lists the jobs, one line for each job with its ID, its student,
+ * its status and the results of its courses, separated by tabs.</li> <li><tt>POST /jobs</tt> with the
+ * form <tt>student=ID&amp;password=PASSWORD&amp;course=ID[,ID...]</tt> and optionally
+ * <tt>&amp;at=TIME&amp;weight=1</tt> submits a job and answers its ID.</li> <li><tt>DELETE /jobs/ID</tt>
+ * cancels a job.</li> </ul> <p>Remember to close the service if it is not used. Call {@link #close()}
+ * method.</p>
+ * @see Daemon
+ */
+public class JobService implements Engine.Listener, Closeable {
+
+    /**
+     * Creates the client of a job, which has not logged in yet.
+     */
+    public interface ClientFactory {
+
+        /**
+         * Create a client.
+         * @return the client
+         */
+        CguWebClient create() throws IOException;
+    }
+
+    /**
+     * The interval in ms between two saves of the cookies of the running jobs.
+     */
+    private static final long SAVE_PERIOD = 10000;
+    /**
+     * The time in ms before a job which cannot log in because of the network is tried again.
+     */
+    private static final long RETRY = 10000;
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final String BEARER = "Bearer ";
+
+    private final JobStore store;
+    private final Engine engine;
+    private final ClientFactory factory;
+    private final Engine.Listener listener;
+    /**
+     * Plans the engine, and saves the cookies. The engine is only started and stopped on it.
+     */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "JobService");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Set when a plan is waiting to run, so that many changes cause only one plan.
+     */
+    private final AtomicBoolean planning = new AtomicBoolean();
+    /**
+     * The client of each job which has logged in, by the ID of the job.
+     */
+    private final Map<Integer, CguWebClient> clients = new ConcurrentHashMap<>();
+    /**
+     * The job of each account of the current run.
+     */
+    private volatile Map<Account, JobStore.Job> jobs = Collections.emptyMap();
+    private HttpServer server;
+    /**
+     * The token of the control API, as bytes to be compared in constant time.
+     */
+    private byte[] token;
+
+    /**
+     * Create a service. It does not start until {@link #start()} is called.
+     * @param store    the store of the jobs
+     * @param ceiling  the max count of requests in flight of the engine
+     * @param factory  creates the client of each job
+     * @param listener receives the events of the engine
+     */
+    public JobService(JobStore store, int ceiling, ClientFactory factory, Engine.Listener listener) {
+        this.store = store;
+        this.factory = factory;
+        this.listener = listener;
+        engine = new Engine(ceiling, this);
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            try {
+                form.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair
+                        .substring(eq + 1), "UTF-8"));
+            } catch (IOException neverHappen) { //Never happens
+                throw new InternalError(neverHappen);
+            }
+        }
+        return form;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", TEXT);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length == 0) return;
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Cancel a job. Its account is removed from the engine.
+     * @param id the ID of the job
+     * @return <tt>true</tt> if the job is cancelled, or <tt>false</tt> if there is no such job or it has
+     * ended
+     * @throws IOException if the change cannot be written
+     */
+    public boolean cancel(int id) throws IOException {
+        JobStore.Job job = store.getJob(id);
+        if (job == null || !job.getStatus().isActive()) return false;
+        store.setStatus(job, JobStore.Status.CANCELLED);
+        listener.onMessage("工作 " + id + " 已取消。");
+        replan();
+        return true;
+    }
+
+    /**
+     * Stop the engine and the control API. The active jobs stay in the store, and they are resumed
+     * when a service is started with the store again.
+     */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+        executor.shutdownNow();
+        engine.stop();
+        saveCookies();
+        for (CguWebClient client : clients.values()) client.close();
+        clients.clear();
+        try {
+            store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the engine, which can be set up before the service starts.
+     * @return the engine
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Start the control API on <tt>127.0.0.1</tt>. A new token is written to {@link
+     * JobStore#getTokenFile()} every time.
+     * @param port the port, or 0 for any free port
+     * @return the port the API is served on
+     * @throws IOException if the port cannot be bound or the token cannot be written
+     */
+    public synchronized int serve(int port) throws IOException {
+        if (server != null) throw new IllegalStateException("The API is served.");
+        token = store.newToken().getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        //API 不和計畫共用執行緒，登入很慢的時候也能回應
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "JobService API");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Resume the active jobs of the store, and save the cookies of the running jobs from time to time.
+     */
+    public void start() {
+        replan();
+        executor.scheduleWithFixedDelay(this::saveCookies, SAVE_PERIOD, SAVE_PERIOD, TimeUnit
+                .MILLISECONDS);
+    }
+
+    /**
+     * Add a job. Its account is added to the engine.
+     * @param studentId the ID of the student
+     * @param password  the password of the student
+     * @param courses   the IDs of the courses
+     * @param openTime  the time enrolling opens in ms since the epoch, or 0 to start at once
+     * @param weight    the share of the requests of the account, at least 1
+     * @return the job
+     * @throws IOException if the job cannot be written
+     */
+    public JobStore.Job submit(String studentId, String password, List<String> courses, long openTime,
+            int weight) throws IOException {
+        JobStore.Job job = store.submit(studentId, password, courses, openTime, weight);
+        listener.onMessage("工作 " + job.id + "：" + studentId + " " + String.join(",", courses));
+        replan();
+        return job;
+    }
+
+    @Override
+    public void onDone() {
+        listener.onDone();
+        replan();
+    }
+
+    @Override
+    public void onFinish(Enrollment enrollment) {
+        JobStore.Job job = jobs.get(enrollment.account);
+        if (job != null) {
+            try {
+                store.setResult(job, enrollment.course.id, enrollment.getResult());
+                if (job.getUnfinished().isEmpty()) store.setStatus(job, JobStore.Status.DONE);
+            } catch (IOException e) {
+                listener.onMessage("無法寫入工作紀錄：" + e.getMessage());
+            }
+        }
+        listener.onFinish(enrollment);
+    }
+
+    @Override
+    public void onMessage(String message) {
+        listener.onMessage(message);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            //固定時間比較，不讓回應時間洩漏權杖
+            if (authorization == null || !authorization.startsWith(BEARER) || !MessageDigest.isEqual
+                    (token, authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets
+                            .UTF_8))) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                respond(exchange, 401, "Missing or wrong token.\n");
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            if ("/jobs".equals(path) && "GET".equals(method)) respond(exchange, 200, list());
+            else if ("/jobs".equals(path) && "POST".equals(method)) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] buffer = new byte[4096];
+                    for (int n; (n = in.read(buffer)) != -1; ) body.write(buffer, 0, n);
+                }
+                Map<String, String> form = parseForm(new String(body.toByteArray(), StandardCharsets
+                        .UTF_8));
+                String student = form.get("student");
+                String password = form.get("password");
+                String course = form.get("course");
+                if (student == null || password == null || course == null) {
+                    respond(exchange, 400, "Missing student, password or course.\n");
+                    return;
+                }
+                long openTime = form.get("at") == null ? 0 : ClockSync.parseTime(form.get("at"));
+                int weight = Integer.parseInt(form.getOrDefault("weight", "1"));
+                JobStore.Job job = submit(student, password, Arrays.asList(course.split("[,\\s]+")),
+                        openTime, weight);
+                respond(exchange, 201, job.id + "\n");
+            }
+            else if (path.startsWith("/jobs/") && "DELETE".equals(method)) {
+                boolean cancelled = cancel(Integer.parseInt(path.substring("/jobs/".length())));
+                respond(exchange, cancelled ? 200 : 404, cancelled ? "" : "No such active job.\n");
+            }
+            else respond(exchange, 405, "");
+        } catch (ParseException | IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String list() {
+        StringBuilder sb = new StringBuilder();
+        for (JobStore.Job job : store.getJobs()) {
+            sb.append(job.id).append('\t').append(job.studentId).append('\t').append(job.getStatus());
+            Map<String, Result> results = job.getResults();
+            for (String course : job.courses) {
+                Result result = results.get(course);
+                sb.append('\t').append(course).append('=').append(result == null ? "-" : result.name());
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Plan the engine again on the thread of the service. Many calls before the plan runs cause only
+     * one plan.
+     */
+    private void replan() {
+        if (!planning.compareAndSet(false, true)) return;
+        try {
+            executor.execute(this::plan);
+        } catch (RejectedExecutionException e) {
+            //The service is closed.
+        }
+    }
+
+    /**
+     * Bring the engine in line with the active jobs. The accounts of the jobs which have ended are
+     * removed from the running engine and their clients are closed, and the new jobs are added to it, so
+     * the other jobs keep running. The engine is only started again if it is not running, or if it is
+     * still waiting for a time enrolling opens which is later than a new job should start at.
+     */
+    private void plan() {
+        planning.set(false);
+        saveCookies();
+        boolean running = engine.isRunning();
+        Map<Account, JobStore.Job> jobs = new HashMap<>();
+        for (Map.Entry<Account, JobStore.Job> entry : this.jobs.entrySet()) {
+            JobStore.Job job = entry.getValue();
+            if (running && job.getStatus().isActive()) jobs.put(entry.getKey(), job);
+            else engine.remove(entry.getKey());
+        }
+        for (Integer id : new ArrayList<>(clients.keySet())) {
+            JobStore.Job job = store.getJob(id);
+            if (job == null || !job.getStatus().isActive()) clients.remove(id).close();
+        }
+        List<Account> accounts = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long openTime = Long.MAX_VALUE;
+        boolean retry = false;
+        for (JobStore.Job job : store.getJobs()) {
+            if (!job.getStatus().isActive() || jobs.containsValue(job)) continue;
+            try {
+                List<String> unfinished = job.getUnfinished();
+                if (unfinished.isEmpty()) {
+                    store.setStatus(job, JobStore.Status.DONE);
+                    continue;
+                }
+                CguWebClient client = clients.get(job.id);
+                if (client == null && (client = login(job)) == null) continue;
+                List<Course> courses = new ArrayList<>(unfinished.size());
+                for (String id : unfinished) {
+                    Course course = client.getCourse(id);
+                    if (course == null) listener.onMessage(job.studentId + " 開課序號錯誤：" + id);
+                    else courses.add(course);
+                }
+                if (courses.isEmpty()) {
+                    store.setStatus(job, JobStore.Status.FAILED);
+                    continue;
+                }
+                Account account = new Account(job.studentId, client, courses, job.weight);
+                accounts.add(account);
+                jobs.put(account, job);
+                store.setStatus(job, JobStore.Status.RUNNING);
+                //有任何一個工作要馬上開始的話就全部馬上開始
+                openTime = Math.min(openTime, job.openTime > now ? job.openTime : 0);
+            } catch (IOException e) {
+                listener.onMessage(job.studentId + " 無法開始：" + e.getMessage());
+                retry = true;
+            }
+        }
+        this.jobs = jobs;
+        if (retry) executor.schedule(this::replan, RETRY, TimeUnit.MILLISECONDS);
+        if (accounts.isEmpty()) return;
+        if (running && openTime < engine.getOpenTime()) {
+            //還在等開放時間，而新的工作要更早開始，這時還沒有送出請求，重新開始不會打斷其他工作
+            engine.stop();
+            accounts = new ArrayList<>(jobs.keySet());
+            for (JobStore.Job job : jobs.values()) openTime = Math.min(openTime, job.openTime > now ? job
+                    .openTime : 0);
+        }
+        try {
+            if (engine.isRunning()) for (Account account : accounts) engine.add(account);
+            else engine.start(accounts, openTime);
+        } catch (IOException | IllegalStateException e) {
+            //The engine may stop by itself when its last course finishes, and onDone() plans again.
+            listener.onMessage("無法開始刷課：" + e.getMessage());
+            executor.schedule(this::replan, RETRY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Create the client of a job and log in, by the saved cookies if the server still takes them.
+     * @return the client, or <tt>null</tt> if the password is wrong and the job has failed
+     * @throws IOException if the client cannot log in because of the network
+     */
+    private CguWebClient login(JobStore.Job job) throws IOException {
+        CguWebClient client = factory.create();
+        try {
+            String cookies = job.getCookies();
+            String name = cookies == null ? null : client.restore(job.studentId, job.password, cookies);
+            if (name != null) listener.onMessage("已恢復登入【" + name + "】");
+            else {
+                name = client.login(job.studentId, job.password);
+                if (name == null) {
+                    listener.onMessage(job.studentId + " 帳號或密碼錯誤。");
+                    store.setStatus(job, JobStore.Status.FAILED);
+                    client.close();
+                    return null;
+                }
+                listener.onMessage("已登入【" + name + "】");
+            }
+            store.setCookies(job, client.getCookieHeader());
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        } catch (LoginFailException e) {
+            client.close();
+            throw new IOException(e);
+        }
+        clients.put(job.id, client);
+        return client;
+    }
+
+    private void saveCookies() {
+        for (Map.Entry<Account, JobStore.Job> entry : jobs.entrySet()) {
+            try {
+                store.setCookies(entry.getValue(), entry.getKey().client.getCookieHeader());
+            } catch (IOException e) {
+                listener.onMessage("無法寫入工作紀錄：" + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package app;
+
+import notify.Result;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A durable store of the enrolling jobs of a {@link JobService}, so that the jobs survive a crash of
+ * the JVM and are resumed when it starts again. Each job is an account, its courses, the time enrolling
+ * opens and the weight of the account, together with its status, the results of its courses and the
+ * cookies of its last login.</p> <p>The store is an append-only text file, <tt>jobs.log</tt> in its
+ * directory. Each change of a job is one line, which is forced to the disk before the change is visible,
+ * so a change is never lost once it is made. A line torn by a crash is ignored when the file is read.
+ * When the store is opened, the file is compacted to one line for each job and each result, and replaced
+ * atomically.</p> <p>The file holds the passwords and the cookies of the accounts, so it can only be
+ * read and written by its owner where the file system allows. So can the token of the control API of the
+ * service, <tt>api.token</tt> in the same directory. This class is thread-safe.</p>
+ */
+public class JobStore {
+
+    /**
+     * The status of a job.
+     */
+    public enum Status {
+        /**
+         * Waiting to be started.
+         */
+        QUEUED, /**
+         * Being enrolled.
+         */
+        RUNNING, /**
+         * Every course has got its terminal result.
+         */
+        DONE, /**
+         * Cancelled by the user.
+         */
+        CANCELLED, /**
+         * Cannot be enrolled, such as when the password is wrong.
+         */
+        FAILED;
+
+        /**
+         * Check if a job of this status is still to be enrolled.
+         * @return <tt>true</tt> if it is <tt>QUEUED</tt> or <tt>RUNNING</tt>
+         */
+        public boolean isActive() {
+            return this == QUEUED || this == RUNNING;
+        }
+    }
+
+    /**
+     * An enrolling job. The fields which change are only changed by the store, which writes the change
+     * first.
+     */
+    public static final class Job {
+
+        /**
+         * The ID of the job, given by the store.
+         */
+        public final int id;
+        /**
+         * The ID of the student.
+         */
+        public final String studentId;
+        /**
+         * The IDs of the courses to enroll.
+         */
+        public final List<String> courses;
+        /**
+         * The time enrolling opens in ms since the epoch, or 0 to start at once.
+         */
+        public final long openTime;
+        /**
+         * The share of the requests of the account (see {@link Account#weight}).
+         */
+        public final int weight;
+        final String password;
+        /**
+         * The terminal result of each course which has got one.
+         */
+        private final Map<String, Result> results = new LinkedHashMap<>();
+        private volatile Status status = Status.QUEUED;
+        /**
+         * The value of the <tt>Cookie</tt> header of the last login, or <tt>null</tt> if there is none.
+         */
+        private volatile String cookies;
+
+        private Job(int id, String studentId, String password, List<String> courses, long openTime, int
+                weight) {
+            this.id = id;
+            this.studentId = studentId;
+            this.password = password;
+            this.courses = Collections.unmodifiableList(new ArrayList<>(courses));
+            this.openTime = openTime;
+            this.weight = weight;
+        }
+
+        /**
+         * Get the cookies of the last login.
+         * @return the value of the <tt>Cookie</tt> header, or <tt>null</tt> if there is none
+         */
+        String getCookies() {
+            return cookies;
+        }
+
+        /**
+         * Get the terminal results of the courses which have got one.
+         * @return a copy of the results, by the ID of the course
+         */
+        public synchronized Map<String, Result> getResults() {
+            return new LinkedHashMap<>(results);
+        }
+
+        /**
+         * Get the status of the job.
+         * @return the status
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the IDs of the courses which have not got a terminal result.
+         * @return the IDs of the courses
+         */
+        public synchronized List<String> getUnfinished() {
+            List<String> unfinished = new ArrayList<>(courses);
+            unfinished.removeAll(results.keySet());
+            return unfinished;
+        }
+    }
+
+    private static final String FILE = "jobs.log";
+    private static final String TOKEN = "api.token";
+    private static final String JOB = "J";
+    private static final String STATUS = "S";
+    private static final String RESULT = "R";
+    private static final String COOKIES = "C";
+
+    private final Path file;
+    private final Map<Integer, Job> jobs = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int nextId = 1;
+
+    private JobStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the store in a directory, read its jobs and compact its file. The directory and the file are
+     * created if they do not exist.
+     * @param directory the directory
+     * @return the store
+     * @throws IOException if the file cannot be read or written
+     */
+    public static JobStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        JobStore store = new JobStore(directory.resolve(FILE));
+        if (Files.exists(store.file)) {
+            byte[] bytes = Files.readAllBytes(store.file);
+            String text = new String(bytes, StandardCharsets.UTF_8);
+            //最後一行沒有換行就是寫到一半當掉的
+            int end = text.lastIndexOf('\n') + 1;
+            for (String line : text.substring(0, end).split("\n")) {
+                if (!line.isEmpty()) store.replay(line);
+            }
+        }
+        store.compact();
+        return store;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+    }
+
+    private static String line(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (String field : fields) {
+            if (sb.length() != 0) sb.append(' ');
+            sb.append(encode(field));
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String line(Job job) {
+        return line(JOB, String.valueOf(job.id), job.studentId, job.password, String.join(",", job
+                .courses), String.valueOf(job.openTime), String.valueOf(job.weight));
+    }
+
+    /**
+     * Close the file of the store.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) channel.close();
+        channel = null;
+    }
+
+    /**
+     * Get the jobs.
+     * @return a copy of the jobs, in the order they were submitted
+     */
+    public synchronized List<Job> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Get the file of the token of the control API.
+     * @return the file, which may not exist yet
+     */
+    public Path getTokenFile() {
+        return file.resolveSibling(TOKEN);
+    }
+
+    /**
+     * Create a new random token of the control API and write it to {@link #getTokenFile()}, which only
+     * the owner can read where the file system allows. The old token no longer works.
+     * @return the token
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized String newToken() throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+        String token = sb.toString();
+        Path temp = file.resolveSibling(TOKEN + ".tmp");
+        Files.deleteIfExists(temp);
+        try (FileChannel out = FileChannel.open(temp, options(), attributes())) {
+            ByteBuffer buffer = ByteBuffer.wrap((token + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        Files.move(temp, getTokenFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption
+                .ATOMIC_MOVE);
+        return token;
+    }
+
+    /**
+     * Get a job.
+     * @param id the ID of the job
+     * @return the job, or <tt>null</tt> if there is none
+     */
+    public synchronized Job getJob(int id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Add a job, which is {@link Status#QUEUED}.
+     * @param studentId the ID of the student
+     * @param password  the password of the student
+     * @param courses   the IDs of the courses
+     * @param openTime  the time enrolling opens in ms since the epoch, or 0 to start at once
+     * @param weight    the share of the requests of the account, at least 1
+     * @return the job
+     * @throws IOException if the job cannot be written
+     */
+    public synchronized Job submit(String studentId, String password, List<String> courses, long
+            openTime, int weight) throws IOException {
+        if (courses.isEmpty()) throw new IllegalArgumentException("No course.");
+        if (weight < 1) throw new IllegalArgumentException("weight: " + weight);
+        Job job = new Job(nextId, studentId, password, courses, openTime, weight);
+        append(line(job));
+        nextId++;
+        jobs.put(job.id, job);
+        return job;
+    }
+
+    /**
+     * Change the status of a job.
+     * @param job    the job
+     * @param status the new status
+     * @throws IOException if the change cannot be written, and the status is not changed
+     */
+    public synchronized void setStatus(Job job, Status status) throws IOException {
+        if (job.status == status) return;
+        append(line(STATUS, String.valueOf(job.id), status.name()));
+        job.status = status;
+    }
+
+    /**
+     * Record the terminal result of a course of a job.
+     * @param job    the job
+     * @param course the ID of the course
+     * @param result the terminal result
+     * @throws IOException if the result cannot be written
+     */
+    public synchronized void setResult(Job job, String course, Result result) throws IOException {
+        append(line(RESULT, String.valueOf(job.id), course, result.name()));
+        synchronized (job) {
+            job.results.put(course, result);
+        }
+    }
+
+    /**
+     * Record the cookies of the latest login of a job. Nothing is written if they have not changed.
+     * @param job     the job
+     * @param cookies the value of the <tt>Cookie</tt> header
+     * @throws IOException if the cookies cannot be written
+     */
+    synchronized void setCookies(Job job, String cookies) throws IOException {
+        if (cookies.equals(job.cookies)) return;
+        append(line(COOKIES, String.valueOf(job.id), cookies));
+        job.cookies = cookies;
+    }
+
+    private void replay(String line) {
+        String[] fields = line.split(" ");
+        for (int i = 0; i < fields.length; i++) fields[i] = decode(fields[i]);
+        try {
+            if (JOB.equals(fields[0]) && fields.length == 7) {
+                List<String> courses = Arrays.asList(fields[4].split(","));
+                Job job = new Job(Integer.parseInt(fields[1]), fields[2], fields[3], courses, Long.parseLong
+                        (fields[5]), Integer.parseInt(fields[6]));
+                jobs.put(job.id, job);
+                nextId = Math.max(nextId, job.id + 1);
+                return;
+            }
+            Job job = fields.length < 3 ? null : jobs.get(Integer.parseInt(fields[1]));
+            if (job == null) return;
+            if (STATUS.equals(fields[0])) job.status = Status.valueOf(fields[2]);
+            else if (RESULT.equals(fields[0]) && fields.length == 4) {
+                job.results.put(fields[2], Result.valueOf(fields[3]));
+            }
+            else if (COOKIES.equals(fields[0])) job.cookies = fields[2];
+        } catch (IllegalArgumentException e) {
+            //A broken line is skipped, and it is dropped by the compaction.
+            System.err.println("Bad line of " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrite the file with the current state of every job, and replace the old file atomically.
+     */
+    private void compact() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Job job : jobs.values()) {
+            sb.append(line(job));
+            String id = String.valueOf(job.id);
+            if (job.status != Status.QUEUED) sb.append(line(STATUS, id, job.status.name()));
+            for (Map.Entry<String, Result> result : job.results.entrySet()) {
+                sb.append(line(RESULT, id, result.getKey(), result.getValue().name()));
+            }
+            if (job.cookies != null) sb.append(line(COOKIES, id, job.cookies));
+        }
+        Path temp = file.resolveSibling(FILE + ".tmp");
+        Files.deleteIfExists(temp);
+        try (FileChannel out = FileChannel.open(temp, options(), attributes())) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static Set<StandardOpenOption> options() {
+        return EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private static FileAttribute<?>[] attributes() {
+        //只有擁有者能讀寫，因為檔案裡有密碼和 cookie
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions
+                .fromString("rw-------"))};
+    }
+
+    private void append(String line) throws IOException {
+        if (channel == null) throw new IOException("The store is closed.");
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+    }
+}
@@ -0,0 +1,408 @@
+package app;
+
+import notify.Result;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A binary journal of every request an {@link Engine} sends, so that a run can be looked into
+ * afterwards. Each request is a fixed-size record appended to a memory-mapped file: the time it was
+ * sent, the total time and the time to the first byte, the {@link Result}, the HTTP status, the count of
+ * bytes read, the worker thread and the course.</p> <p>Writing a record takes no lock. The slot of a
+ * record is reserved by an atomic cursor, and the record is written into the mapped file directly. The
+ * result is written last, after a store fence, so a record which is not fully written reads as an empty
+ * slot. The journal is split into segments of {@link #SEGMENT_SIZE} bytes, and a new segment is mapped
+ * when the last one is full.</p> <p>Each segment is a file named <tt>RUN-NNNNN.jnl</tt> in the directory
+ * of the journal, where <tt>RUN</tt> is the time the engine started. It begins with a header of {@link
+ * #HEADER_SIZE} bytes: a magic number, the version, the size of a record, the number of the segment, the
+ * time the run started and the IDs of the courses of the start, as many as fit. The IDs of all of the
+ * courses, including the ones which join the run later, are also written to <tt>RUN.courses</tt>, one
+ * per line in the order of their indexes.</p> <p>Usage: <tt>java app.Journal --journal=DIR|FILE
+ * [--run=RUN] [--csv=false]</tt> prints a summary of the journal, or every record as CSV. <tt>--run</tt>
+ * picks a run in the directory, the latest one by default.</p>
+ * @see Engine#setJournal(Path)
+ */
+public class Journal {
+
+    /**
+     * The size of a segment file in bytes.
+     */
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    /**
+     * The size of the header of a segment in bytes.
+     */
+    static final int HEADER_SIZE = 4096;
+    /**
+     * The size of a record in bytes.
+     */
+    static final int RECORD_SIZE = 32;
+    /**
+     * The max index of a course, since it is two bytes. The courses after it are all recorded as this
+     * index.
+     */
+    static final int MAX_COURSES = 0xFFFF;
+    private static final int RECORDS = (SEGMENT_SIZE - HEADER_SIZE) / RECORD_SIZE;
+    private static final int MAGIC = 0x43475541; //CGUJ
+    private static final short VERSION = 2;
+    private static final String SUFFIX = ".jnl";
+    private static final String COURSES = ".courses";
+    private static final Result[] RESULTS = Result.values();
+    //記錄的欄位位置
+    private static final int TIME = 0;
+    private static final int TOTAL = 8;
+    private static final int FIRST_BYTE = 12;
+    private static final int BYTES = 16;
+    private static final int STATUS = 20;
+    private static final int WORKER = 22;
+    private static final int COURSE = 24;
+    /**
+     * The ordinal of the result plus one, so that 0 is an empty slot.
+     */
+    private static final int RESULT = 26;
+    /**
+     * The position of the result in the records of version 1, whose course is one byte.
+     */
+    private static final int RESULT_V1 = 25;
+    /**
+     * <tt>Unsafe.storeFence()</tt>, which is looked up by reflection, since the code is built for Java 8
+     * and there is no <tt>VarHandle</tt>. It is <tt>null</tt> if the JVM does not have it.
+     */
+    private static final MethodHandle STORE_FENCE = findStoreFence();
+    /**
+     * Written instead of the fence if there is no {@link #STORE_FENCE}.
+     */
+    private static volatile int fence;
+
+    private final Path directory;
+    private final String run;
+    private final byte[] header;
+    private final AtomicLong cursor = new AtomicLong();
+    /**
+     * The mapped segments. Only {@link #current} is read without the lock.
+     */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private volatile Segment current;
+    /**
+     * Set when a segment cannot be mapped. The records are dropped from then on.
+     */
+    private volatile boolean broken;
+
+    private Journal(Path directory, List<String> courseIDs) throws IOException {
+        this.directory = directory;
+        long created = System.currentTimeMillis();
+        run = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(created));
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putInt(0).putLong(created)
+                .putShort((short) 0);
+        int count = 0;
+        for (String id : courseIDs) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            //放不下的課號只寫在 .courses 檔
+            if (count == MAX_COURSES || buffer.remaining() < 2 + bytes.length) break;
+            buffer.putShort((short) bytes.length).put(bytes);
+            count++;
+        }
+        buffer.putShort(20, (short) count);
+        header = buffer.array();
+        Files.createDirectories(directory);
+        Files.write(directory.resolve(run + COURSES), courseIDs, StandardCharsets.UTF_8, StandardOpenOption
+                .CREATE_NEW, StandardOpenOption.WRITE);
+        segments.add(map(0));
+        current = new Segment(0, segments.get(0));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        Path path = Paths.get(options.require("journal"));
+        List<Path> files = Files.isDirectory(path) ? files(path, options.get("run")) : Collections
+                .singletonList(path);
+        if (files.isEmpty()) throw new IllegalArgumentException("No journal: " + path);
+        if (Boolean.parseBoolean(options.get("csv", "false"))) csv(files, System.out);
+        else summary(files, System.out);
+    }
+
+    /**
+     * Create a journal of a new run.
+     * @param directory the directory of the journal, which is created if it does not exist
+     * @param courseIDs the IDs of the courses, in the order of the indexes given to {@link #record(int,
+     *                  Result, long, long, int, long, int)}
+     * @return the journal
+     * @throws IOException if the first segment or the list of the courses cannot be created
+     */
+    static Journal create(Path directory, List<String> courseIDs) throws IOException {
+        return new Journal(directory, courseIDs);
+    }
+
+    private static MethodHandle findStoreFence() {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(type, "storeFence", MethodType.methodType(void.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keep the stores before it from being moved after the stores after it, by the compiler or the CPU.
+     */
+    private static void storeFence() {
+        if (STORE_FENCE == null) {
+            //volatile 寫入之後的 StoreLoad 屏障也擋住了 StoreStore 重排
+            fence = 0;
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+    }
+
+    /**
+     * List the segments of a run in a directory.
+     * @param run the run, or <tt>null</tt> for the latest one
+     */
+    private static List<Path> files(Path directory, String run) throws IOException {
+        TreeMap<String, List<Path>> runs = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*-?????" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                runs.computeIfAbsent(name.substring(0, name.length() - SUFFIX.length() - 6), k -> new
+                        ArrayList<>()).add(file);
+            }
+        }
+        if (run == null && runs.isEmpty()) return new ArrayList<>();
+        List<Path> files = run == null ? runs.lastEntry().getValue() : runs.get(run);
+        if (files == null) return new ArrayList<>();
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * Read the segments and call the visitor for every record which has been written. The courses are
+     * named by the <tt>.courses</tt> file of the run, or by the header if there is no such file.
+     */
+    private static void read(List<Path> files, Visitor visitor) throws IOException {
+        for (Path file : files) {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            String[] courses;
+            short version;
+            try {
+                if (buffer.getInt() != MAGIC || (version = buffer.getShort()) < 1 || version > VERSION ||
+                        buffer.getShort() != RECORD_SIZE) throw new IOException("Not a journal: " + file);
+                buffer.getInt();
+                buffer.getLong();
+                courses = new String[buffer.getShort() & 0xFFFF];
+                for (int i = 0; i < courses.length; i++) {
+                    byte[] bytes = new byte[buffer.getShort()];
+                    buffer.get(bytes);
+                    courses[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Broken journal: " + file);
+            }
+            String name = file.getFileName().toString();
+            Path list = file.resolveSibling(name.substring(0, Math.max(0, name.length() - SUFFIX.length() -
+                    6)) + COURSES);
+            if (Files.isRegularFile(list)) courses = Files.readAllLines(list, StandardCharsets.UTF_8)
+                    .toArray(new String[0]);
+            int at = version == 1 ? RESULT_V1 : RESULT;
+            for (int offset = HEADER_SIZE; offset + RECORD_SIZE <= buffer.limit(); offset += RECORD_SIZE) {
+                int result = buffer.get(offset + at) - 1;
+                if (result < 0 || result >= RESULTS.length) continue;
+                int course = version == 1 ? buffer.get(offset + COURSE) & 0xFF : buffer.getShort(offset +
+                        COURSE) & 0xFFFF;
+                visitor.visit(buffer.getLong(offset + TIME), buffer.getInt(offset + TOTAL), buffer.getInt
+                        (offset + FIRST_BYTE), RESULTS[result], buffer.getShort(offset + STATUS) & 0xFFFF,
+                        buffer.getInt(offset + BYTES), buffer.getShort(offset + WORKER), course < courses
+                                .length ? courses[course] : String.valueOf(course));
+            }
+        }
+    }
+
+    private static void csv(List<Path> files, PrintStream out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        out.println("time,course,worker,result,status,total_us,first_byte_us,bytes");
+        read(files, (time, total, firstByte, result, status, bytes, worker, course) -> out.printf
+                ("%s,%s,%d,%s,%d,%d,%d,%d%n", format.format(new Date(time)), course, worker, result.name(),
+                        status, total, firstByte, bytes));
+    }
+
+    private static void summary(List<Path> files, PrintStream out) throws IOException {
+        Map<String, Histogram> results = new TreeMap<>();
+        Map<String, Long> courses = new TreeMap<>();
+        Map<Integer, Long> statuses = new TreeMap<>();
+        Histogram all = new Histogram();
+        long[] span = {Long.MAX_VALUE, Long.MIN_VALUE, 0};
+        read(files, (time, total, firstByte, result, status, bytes, worker, course) -> {
+            all.record(total);
+            results.computeIfAbsent(result.name(), k -> new Histogram()).record(total);
+            courses.merge(course + " " + result.name(), 1L, Long::sum);
+            statuses.merge(status, 1L, Long::sum);
+            span[0] = Math.min(span[0], time);
+            span[1] = Math.max(span[1], time);
+            span[2] += bytes;
+        });
+        if (all.getCount() == 0) {
+            out.println("No record.");
+            return;
+        }
+        out.printf("%d records from %tF %<tT.%<tL to %tT.%<tL, %d bytes read.%n", all.getCount(), span[0],
+                span[1], span[2]);
+        for (Map.Entry<String, Histogram> entry : results.entrySet()) {
+            Histogram h = entry.getValue();
+            out.printf("%-14s %8d  p50 %dms p99 %dms max %dms%n", entry.getKey(), h.getCount(), h
+                    .getPercentile(50) / 1000, h.getPercentile(99) / 1000, h.getMax() / 1000);
+        }
+        for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+            out.printf("HTTP %-9s %8d%n", entry.getKey() == 0 ? "-" : entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : courses.entrySet()) {
+            out.printf("%-24s %8d%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Name the courses which join the run after it started, by appending their IDs to the
+     * <tt>.courses</tt> file. It never throws.
+     * @param courseIDs the IDs of the courses, in the order of their indexes, which follow the ones
+     *                  named before
+     */
+    synchronized void addCourses(List<String> courseIDs) {
+        try {
+            Files.write(directory.resolve(run + COURSES), courseIDs, StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Force the written records to the files. The segments stay mapped until they are collected.
+     */
+    void close() {
+        synchronized (segments) {
+            for (MappedByteBuffer segment : segments) segment.force();
+        }
+    }
+
+    /**
+     * Get the files of the journal, as a pattern.
+     * @return the path of the segments with <tt>*</tt> for their numbers
+     */
+    Path getFiles() {
+        return directory.resolve(run + "-*" + SUFFIX);
+    }
+
+    private MappedByteBuffer map(int number) throws IOException {
+        Path file = directory.resolve(String.format("%s-%05d%s", run, number, SUFFIX));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption
+                .READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+        buffer.put(header);
+        buffer.putInt(8, number);
+        return buffer;
+    }
+
+    /**
+     * Append a record. It takes no lock unless a new segment has to be mapped, and never throws.
+     * @param course    the index of the course. The indexes from {@link #MAX_COURSES} up are recorded
+     *                  as {@link #MAX_COURSES}.
+     * @param result    the result
+     * @param firstByte the time to the first byte in ns, or 0 if there is no response
+     * @param total     the total time in ns
+     * @param status    the HTTP status, or 0 if there is no response
+     * @param bytes     the count of bytes of the body read
+     * @param worker    the number of the worker thread, or <tt>-1</tt> if it is not sent by a worker
+     */
+    void record(int course, Result result, long firstByte, long total, int status, long bytes, int worker) {
+        if (broken) return;
+        long slot = cursor.getAndIncrement();
+        int number = (int) (slot / RECORDS);
+        Segment last = current;
+        MappedByteBuffer segment = number == last.number ? last.buffer : segment(number);
+        if (segment == null) return;
+        int offset = HEADER_SIZE + (int) (slot % RECORDS) * RECORD_SIZE;
+        segment.putLong(offset + TIME, System.currentTimeMillis() - total / 1_000_000);
+        segment.putInt(offset + TOTAL, (int) Math.min(Integer.MAX_VALUE, total / 1000));
+        segment.putInt(offset + FIRST_BYTE, (int) Math.min(Integer.MAX_VALUE, firstByte / 1000));
+        segment.putInt(offset + BYTES, (int) Math.min(Integer.MAX_VALUE, bytes));
+        segment.putShort(offset + STATUS, (short) status);
+        segment.putShort(offset + WORKER, (short) worker);
+        segment.putShort(offset + COURSE, (short) Math.min(course, MAX_COURSES));
+        //其他欄位都寫好之後才寫結果，讀的一方才不會看到寫到一半的紀錄
+        storeFence();
+        segment.put(offset + RESULT, (byte) (result.ordinal() + 1));
+    }
+
+    /**
+     * Get a segment, and map it if it is new.
+     * @return the segment, or <tt>null</tt> if it cannot be mapped
+     */
+    private MappedByteBuffer segment(int number) {
+        synchronized (segments) {
+            try {
+                while (segments.size() <= number) segments.add(map(segments.size()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                broken = true;
+                return null;
+            }
+            MappedByteBuffer segment = segments.get(number);
+            if (number > current.number) current = new Segment(number, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * The last segment with its number.
+     */
+    private static final class Segment {
+        private final int number;
+        private final MappedByteBuffer buffer;
+
+        private Segment(int number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Receives the records read from a journal.
+     */
+    private interface Visitor {
+        void visit(long time, int total, int firstByte, Result result, int status, int bytes, int worker,
+                String course);
+    }
+}
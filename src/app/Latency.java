@@ -0,0 +1,113 @@
+package app;
+
+import notify.Result;
+
+/**
+ * <p>This class records how long each request takes. It keeps two {@link Histogram}s for each {@link
+ * Result}: the total time of the request, and the time to the first byte of the response, that is, the
+ * time until the response headers are read. All times are in microseconds. It is thread-safe.</p>
+ */
+public class Latency {
+
+    private final Histogram[] firstByte = new Histogram[Result.values().length];
+    private final Histogram[] total = new Histogram[Result.values().length];
+    /**
+     * The total time of all of the results, used to show the live figures.
+     */
+    private final Histogram all = new Histogram();
+    private volatile long beginTime = System.nanoTime();
+
+    public Latency() {
+        for (int i = 0; i < total.length; i++) {
+            total[i] = new Histogram();
+            firstByte[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Record a request.
+     * @param result    the result of the request
+     * @param firstByte the time to the first byte in ns
+     * @param total     the total time in ns
+     */
+    public void record(Result result, long firstByte, long total) {
+        this.firstByte[result.ordinal()].record(firstByte / 1000);
+        this.total[result.ordinal()].record(total / 1000);
+        all.record(total / 1000);
+    }
+
+    /**
+     * Forget all of the requests and restart the clock of {@link #getRate()}. Do not call this method
+     * while the worker threads are running.
+     */
+    public void clear() {
+        for (int i = 0; i < total.length; i++) {
+            total[i].clear();
+            firstByte[i].clear();
+        }
+        all.clear();
+        beginTime = System.nanoTime();
+    }
+
+    /**
+     * Get the total times of all of the results.
+     * @return the histogram of the total times
+     */
+    public Histogram getAll() {
+        return all;
+    }
+
+    /**
+     * Get the time to the first byte of a result.
+     * @param result the result
+     * @return the histogram of the time to the first byte
+     */
+    public Histogram getFirstByte(Result result) {
+        return firstByte[result.ordinal()];
+    }
+
+    /**
+     * Get the count of requests per second since the latency was cleared.
+     * @return the count of requests per second
+     */
+    public double getRate() {
+        double seconds = (System.nanoTime() - beginTime) / 1e9;
+        return seconds <= 0 ? 0 : all.getCount() / seconds;
+    }
+
+    /**
+     * Get the total time of a result.
+     * @param result the result
+     * @return the histogram of the total time
+     */
+    public Histogram getTotal(Result result) {
+        return total[result.ordinal()];
+    }
+
+    /**
+     * Get a short text of the live figures, such as <tt>p50 12ms p99 80ms max 300ms 35.2/s</tt>.
+     * @return the live figures
+     */
+    public String getLiveText() {
+        return String.format("p50 %dms p99 %dms max %dms %.1f/s", all.getPercentile(50) / 1000, all
+                .getPercentile(99) / 1000, all.getMax() / 1000, getRate());
+    }
+
+    /**
+     * Get a summary of every result that has been recorded, one line for each result.
+     * @return the summary
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder(String.format("共 %d 次，每秒 %.1f 次。", all.getCount(),
+                getRate()));
+        for (Result result : Result.values()) {
+            Histogram t = getTotal(result);
+            if (t.getCount() == 0) continue;
+            Histogram f = getFirstByte(result);
+            sb.append(String.format("%n%s %d 次：p50 %dms p99 %dms max %dms；首位元組 p50 %dms p99 %dms",
+                    result, t.getCount(), t.getPercentile(50) / 1000, t.getPercentile(99) / 1000, t
+                            .getMax() / 1000, f.getPercentile(50) / 1000, f.getPercentile(99) / 1000));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package app;
+
+/**
+ * <p>This class limits how many requests are sent to CGU's server at the same time. The limit is not
+ * fixed. It is adjusted by the round trip time of the requests, like TCP Vegas does.</p> <p>The fastest
+ * round trip seen recently is taken as the time of an idle server. If the latest round trips are not
+ * much slower than that, the requests are not queued anywhere, so the limit goes up. If they get slower,
+ * the requests are being queued by the network or the server, so the limit goes down. A request which is
+ * dropped, which gets no response or a 5xx status, cuts the limit at once.</p> <p>The limit never goes
+ * above the ceiling given to the constructor. This class is thread-safe.</p>
+ * @see Request
+ */
+public class Limiter {
+
+    /**
+     * If fewer requests than this are estimated to be queued, the limit goes up.
+     */
+    private static final int ALPHA = 2;
+    /**
+     * If more requests than this are estimated to be queued, the limit goes down.
+     */
+    private static final int BETA = 4;
+    /**
+     * The limit is multiplied by this number when a request fails.
+     */
+    private static final double BACKOFF = 0.9;
+    /**
+     * The fastest round trip is forgotten after this many samples, so that a change of route or
+     * server load is noticed. The next sample which is not dropped becomes the new fastest one.
+     */
+    private static final int PROBE_INTERVAL = 1000;
+
+    /**
+     * The limit never goes above this number.
+     */
+    public final int ceiling;
+    private int inFlight;
+    private double limit;
+    private long minRtt = Long.MAX_VALUE;
+    private boolean closed;
+    private int samples;
+
+    /**
+     * Create a limiter. The initial limit is the smaller of <tt>ceiling</tt> and 4.
+     * @param ceiling the max count of requests in flight
+     */
+    public Limiter(int ceiling) {
+        this(ceiling, Math.min(ceiling, 4));
+    }
+
+    /**
+     * Create a limiter with the given initial limit.
+     * @param ceiling the max count of requests in flight
+     * @param initial the initial limit, such as <tt>ceiling</tt> to send a whole wave of requests at once
+     */
+    public Limiter(int ceiling, int initial) {
+        if (ceiling < 1) throw new IllegalArgumentException("ceiling: " + ceiling);
+        if (initial < 1 || initial > ceiling) throw new IllegalArgumentException("initial: " + initial);
+        this.ceiling = ceiling;
+        this.limit = initial;
+    }
+
+    /**
+     * Wait until a request is allowed to be sent. Every successful call must be paired with a call to
+     * {@link #release(long, boolean)}.
+     * @return <tt>true</tt> if the request can be sent, or <tt>false</tt> if the limiter is closed
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        while (!closed && inFlight >= (int) limit) wait();
+        if (closed) return false;
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Report that a request is done and adjust the limit.
+     * @param rtt     the round trip time of the request in ns
+     * @param dropped <tt>true</tt> if the request got no response or a 5xx status. A page the server
+     *                answers with an error is not dropped.
+     */
+    public synchronized void release(long rtt, boolean dropped) {
+        inFlight--;
+        //逾時或失敗的請求不能當作最快的來回時間
+        if (++samples >= PROBE_INTERVAL && !dropped) {
+            samples = 0;
+            minRtt = rtt;
+        }
+        if (dropped) limit = Math.max(1, limit * BACKOFF);
+        else {
+            if (rtt < minRtt) minRtt = rtt;
+            double queued = limit * (1 - (double) minRtt / Math.max(rtt, 1));
+            if (queued < ALPHA) limit = Math.min(ceiling, limit + 1);
+            else if (queued > BETA) limit = Math.max(1, limit - 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the current limit.
+     * @return the current limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the count of requests in flight.
+     * @return the count of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Close the limiter. All of the threads waiting in {@link #acquire()} return <tt>false</tt>.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,296 @@
+package app;
+
+import cgu.Course;
+import cgu.WeekDay;
+import notify.LoginFailException;
+import notify.SessionExpiredException;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.cookie.DefaultCookieSpec;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The fast path of {@link CguWebClient}. It logs in and searches courses by plain form posts, and
+ * reads the pages with {@link Page} in one streaming pass. No JavaScript is run and no DOM is
+ * built.</p> <p>It throws {@link LoginFailException} or {@link IOException} when a page is not what it
+ * expects, so that <tt>CguWebClient</tt> can fall back to HtmlUnit.</p>
+ */
+class LiteClient implements Closeable {
+
+    /**
+     * A page got by the client.
+     */
+    static final class Response {
+        /**
+         * The html of the page, or <tt>null</tt> if it is not kept.
+         */
+        final String html;
+        final Page page;
+        /**
+         * The url of the page after the redirections.
+         */
+        final URL url;
+
+        private Response(URL url, Page page, String html) {
+            this.url = url;
+            this.page = page;
+            this.html = html;
+        }
+    }
+
+    /**
+     * The value of <tt>_ctl1:departmentsList</tt> that searches every department.
+     */
+    private static final String ALL_DEPARTMENTS = "-1";
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/60.0.3112.113 Safari/537.36";
+    /**
+     * The max count of forms submitted automatically after logging in, like the forms a single sign-on
+     * page submits by JavaScript.
+     */
+    private static final int MAX_RELAY = 3;
+
+    /**
+     * The cookies of this client. It is only package-visible and final.
+     */
+    final BasicCookieStore cookies = new BasicCookieStore();
+    private final CloseableHttpClient http;
+
+    LiteClient(int timeout) {
+        RequestConfig config = RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout(timeout)
+                .setConnectionRequestTimeout(timeout).build();
+        http = HttpClients.custom().setDefaultCookieStore(cookies).setRedirectStrategy(new
+                LaxRedirectStrategy()).setUserAgent(USER_AGENT).setDefaultRequestConfig(config).build();
+    }
+
+    private static List<NameValuePair> pairs(Map<String, String> fields) {
+        List<NameValuePair> pairs = new ArrayList<>(fields.size());
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            pairs.add(new BasicNameValuePair(field.getKey(), field.getValue()));
+        }
+        return pairs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        http.close();
+    }
+
+    /**
+     * Get the value of the <tt>Cookie</tt> header sent to a url.
+     * @param url the url
+     * @return the value of the header, may be empty
+     */
+    String getCookieHeader(URL url) {
+        DefaultCookieSpec spec = new DefaultCookieSpec();
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        CookieOrigin origin = new CookieOrigin(url.getHost(), port, url.getPath().isEmpty() ? "/" : url
+                .getPath(), "https".equals(url.getProtocol()));
+        StringBuilder sb = new StringBuilder(500);
+        Date now = new Date();
+        for (Cookie c : cookies.getCookies()) {
+            if (c.isExpired(now) || !spec.match(c, origin)) continue;
+            if (sb.length() != 0) sb.append("; ");
+            sb.append(c.getName()).append("=").append(c.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Search a course.
+     * @param searchClass url of the class searching page
+     * @param courseID    the ID of the course
+     * @return the course, or <tt>null</tt> if it does not exist
+     * @throws IOException if the searching page is not what it expects
+     */
+    Course getCourse(URL searchClass, String courseID) throws IOException {
+        Response result = search(searchClass, courseID, null);
+        for (List<String> row : result.page.grid) {
+            if (row.size() > 8 && hasCell(row, courseID)) return course(row, result.url, courseID);
+        }
+        return null;
+    }
+
+    /**
+     * Search the courses of every department at once.
+     * @param searchClass url of the class searching page
+     * @return the courses, in the order of the page
+     * @throws IOException if the searching page is not what it expects
+     */
+    List<Course> getCourses(URL searchClass) throws IOException {
+        Response result = search(searchClass, "", ALL_DEPARTMENTS);
+        List<Course> courses = new ArrayList<>(result.page.grid.size());
+        //The first row is the header of the table.
+        for (List<String> row : result.page.grid.subList(Math.min(1, result.page.grid.size()), result.page
+                .grid.size())) {
+            if (row.size() > 8) courses.add(course(row, result.url, row.get(1).split("\n")[0]));
+        }
+        return courses;
+    }
+
+    private static Course course(List<String> row, URL url, String courseID) {
+        return new Course(row.get(5).split("\n")[0], url, courseID, row.get(6), WeekDay.parse(row.get(8)));
+    }
+
+    /**
+     * Submit the search form of the class searching page.
+     * @param courseID   the ID of the course, or an empty string for any course
+     * @param department the value of <tt>_ctl1:departmentsList</tt>, or <tt>null</tt> to keep the one
+     *                   selected by the page
+     */
+    private Response search(URL searchClass, String courseID, String department) throws IOException {
+        Response search = get(searchClass, false);
+        Page.Form form = search.page.findForm("_ctl1:courseID");
+        if (form == null || !form.buttons.containsKey("_ctl1:newSearch")) throw new IOException("No " +
+                "search form: " + search.url);
+        form.fields.put("_ctl1:courseID", courseID);
+        if (department != null) form.fields.put("_ctl1:departmentsList", department);
+        form.fields.put("_ctl1:newSearch", form.buttons.get("_ctl1:newSearch"));
+        return post(form.resolve(search.url), form.fields, false);
+    }
+
+    private static boolean hasCell(List<String> row, String text) {
+        for (String cell : row) {
+            if (cell.split("\n")[0].equals(text)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the fields of the first form of a page that has the field <tt>__VIEWSTATE</tt>.
+     * @param url url of the page
+     * @return the fields
+     * @throws IOException               if there is no such form
+     * @throws SessionExpiredException if the server answers the login page instead
+     */
+    Map<String, String> getFormFields(URL url) throws IOException {
+        Response response = get(url, false);
+        Page.Form form = response.page.findForm("__VIEWSTATE");
+        if (response.page.findForm("Ecom_User_ID") != null)
+            throw new SessionExpiredException("Login page: " + response.url);
+        if (form == null) throw new IOException("No __VIEWSTATE: " + response.url);
+        return form.fields;
+    }
+
+    /**
+     * Get a page.
+     * @param url      the url
+     * @param keepHtml <tt>true</tt> to keep the html of the page
+     * @return the page
+     */
+    Response get(URL url, boolean keepHtml) throws IOException {
+        try {
+            return execute(new HttpGet(url.toURI()), keepHtml);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Log in the student system.
+     * @param studentSystem url of the student system
+     * @param studentId     a student's ID
+     * @param password      a student's password
+     * @return the html of the student system after logging in, or <tt>null</tt> if password is wrong
+     * @throws LoginFailException if a page is not what it expects
+     */
+    String login(URL studentSystem, String studentId, String password) throws IOException,
+            LoginFailException {
+        Response portal = get(studentSystem, false);
+        String href = null;
+        for (String link : portal.page.links) {
+            if (link.endsWith("/portal/Login.aspx")) href = link;
+        }
+        if (href == null) throw new LoginFailException("No login link: " + portal.url);
+        Response login = get(new URL(portal.url, href), false);
+        Page.Form form = login.page.findForm("Ecom_User_ID");
+        if (form == null) throw new LoginFailException("No login form: " + login.url);
+        form.fields.put("Ecom_User_ID", studentId);
+        form.fields.put("Ecom_Password", password);
+        Response response = post(form.resolve(login.url), form.fields, true);
+        for (int n = 0; n < MAX_RELAY; n++) {
+            if (response.html.contains("Login failed, please try again.")) return null;
+            if (response.html.contains("Hello")) return response.html;
+            if (response.page.forms.size() != 1 || response.page.forms.get(0).visible) break;
+            //A form with only hidden fields, which is submitted by JavaScript in a browser.
+            Page.Form relay = response.page.forms.get(0);
+            response = post(relay.resolve(response.url), relay.fields, true);
+        }
+        if (response.html.contains("Login failed, please try again.")) return null;
+        Response relocated = get(studentSystem, true);
+        if (relocated.html.contains("Hello")) return relocated.html;
+        throw new LoginFailException("Unknown login status: " + response.url);
+    }
+
+    /**
+     * Post a form.
+     * @param url      the url
+     * @param fields   the fields of the form
+     * @param keepHtml <tt>true</tt> to keep the html of the page
+     * @return the page
+     */
+    Response post(URL url, Map<String, String> fields, boolean keepHtml) throws IOException {
+        try {
+            HttpPost post = new HttpPost(url.toURI());
+            post.setEntity(new UrlEncodedFormEntity(pairs(fields), StandardCharsets.UTF_8));
+            return execute(post, keepHtml);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Response execute(HttpUriRequest request, boolean keepHtml) throws IOException {
+        HttpClientContext context = HttpClientContext.create();
+        try (CloseableHttpResponse response = http.execute(request, context)) {
+            URL url;
+            try {
+                url = URIUtils.resolve(request.getURI(), context.getTargetHost(), context
+                        .getRedirectLocations()).toURL();
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status >= 400 || entity == null) throw new IOException(response.getStatusLine() + ": " +
+                    url);
+            ContentType type = ContentType.get(entity);
+            Charset charset = type == null || type.getCharset() == null ? StandardCharsets.UTF_8 : type
+                    .getCharset();
+            if (keepHtml) {
+                String html = EntityUtils.toString(entity, charset);
+                return new Response(url, Page.parse(html), html);
+            }
+            try (InputStream in = entity.getContent()) {
+                return new Response(url, Page.parse(in, charset), null);
+            }
+        }
+    }
+}
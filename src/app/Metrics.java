@@ -0,0 +1,193 @@
+package app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import notify.Result;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>This class serves the figures of an {@link Engine} at <tt>http://127.0.0.1:PORT/metrics</tt> in the
+ * text format of Prometheus, so a long run can be graphed and watched like any other service.</p>
+ * <p>Nothing is counted for it on the worker threads. The figures are read from the {@link Counter},
+ * the {@link Latency} and the other parts of the engine only when they are scraped. It is served by the
+ * <tt>HttpServer</tt> of the JDK on one daemon thread, and it only listens on the loopback address.</p>
+ * <p>Remember to close it if it is not used. Call {@link #close()} method.</p>
+ */
+public class Metrics implements Closeable {
+
+    /**
+     * The upper bounds in seconds of the buckets of the latency histograms.
+     */
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Engine engine;
+    private final HttpServer server;
+
+    /**
+     * Start serving the figures of an engine.
+     * @param engine the engine
+     * @param port   the port on the loopback address, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public Metrics(Engine engine, int port) throws IOException {
+        this.engine = engine;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * Get the port the figures are served on.
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving the figures.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read the figures of the engine.
+     * @return the figures in the text format of Prometheus
+     */
+    String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        header(sb, "enroller_running", "gauge", "1 if the engine is running.");
+        sample(sb, "enroller_running", "", engine.isRunning() ? 1 : 0);
+        header(sb, "enroller_hot", "gauge", "1 if the engine has warmed up for the current run.");
+        sample(sb, "enroller_hot", "", engine.isHot() ? 1 : 0);
+        header(sb, "enroller_attempts_total", "counter", "Requests sent, by result.");
+        for (Result result : Result.values()) {
+            sample(sb, "enroller_attempts_total", label(result), engine.counter.get(result));
+        }
+        header(sb, "enroller_attempt_latency_seconds", "histogram", "Total time of the requests, by " +
+                "result.");
+        long[] bounds = new long[BUCKETS.length];
+        for (int i = 0; i < bounds.length; i++) bounds[i] = Math.round(BUCKETS[i] * 1e6);
+        for (Result result : Result.values()) {
+            Histogram histogram = engine.latency.getTotal(result);
+            //桶子和總數不是同時讀的，+Inf 不能比最後一個桶子少
+            long[] counts = histogram.getCounts(bounds);
+            long count = Math.max(histogram.getCount(), counts[counts.length - 1]);
+            String label = label(result);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                sample(sb, "enroller_attempt_latency_seconds_bucket", label + ",le=\"" + format(BUCKETS
+                        [i]) + "\"", counts[i]);
+            }
+            sample(sb, "enroller_attempt_latency_seconds_bucket", label + ",le=\"+Inf\"", count);
+            sample(sb, "enroller_attempt_latency_seconds_sum", label, histogram.getSum() / 1e6);
+            sample(sb, "enroller_attempt_latency_seconds_count", label, count);
+        }
+        Limiter limiter = engine.getLimiter();
+        header(sb, "enroller_in_flight", "gauge", "Requests in flight.");
+        sample(sb, "enroller_in_flight", "", limiter == null || !engine.isRunning() ? 0 : limiter
+                .getInFlight());
+        header(sb, "enroller_concurrency_limit", "gauge", "Max count of requests in flight allowed " +
+                "now.");
+        sample(sb, "enroller_concurrency_limit", "", limiter == null ? 0 : limiter.getLimit());
+        Breaker breaker = engine.getBreaker();
+        Breaker.State state = breaker == null ? Breaker.State.CLOSED : breaker.getState();
+        header(sb, "enroller_breaker_state", "gauge", "1 for the current state of the circuit breaker.");
+        for (Breaker.State s : Breaker.State.values()) {
+            sample(sb, "enroller_breaker_state", "state=\"" + s.name().toLowerCase(Locale.ROOT) + "\"",
+                    s == state ? 1 : 0);
+        }
+        header(sb, "enroller_breaker_opens_total", "counter", "Times the circuit breaker has opened.");
+        sample(sb, "enroller_breaker_opens_total", "", breaker == null ? 0 : breaker.getOpens());
+        header(sb, "enroller_failure_rate", "gauge", "Rate of failed requests in the window of the " +
+                "circuit breaker.");
+        sample(sb, "enroller_failure_rate", "", breaker == null ? 0 : breaker.getFailureRate());
+        header(sb, "enroller_workers", "gauge", "Threads sending the requests.");
+        sample(sb, "enroller_workers", "", engine.getWorkers());
+        header(sb, "enroller_relogins_total", "counter", "Logins again after the session expired, by " +
+                "outcome.");
+        sample(sb, "enroller_relogins_total", "outcome=\"success\"", engine.getRelogins(false));
+        sample(sb, "enroller_relogins_total", "outcome=\"failure\"", engine.getRelogins(true));
+        header(sb, "enroller_response_bytes_total", "counter", "Bytes of the response bodies read on the " +
+                "wire, by result.");
+        for (Result result : Result.values()) {
+            sample(sb, "enroller_response_bytes_total", label(result), engine.getBytesRead(result, false));
+        }
+        header(sb, "enroller_response_decoded_bytes_total", "counter", "Bytes of the response bodies " +
+                "after they are inflated, by result.");
+        for (Result result : Result.values()) {
+            sample(sb, "enroller_response_decoded_bytes_total", label(result), engine.getBytesRead(result,
+                    true));
+        }
+        header(sb, "enroller_request_bytes_total", "counter", "Bytes of the request bodies sent.");
+        sample(sb, "enroller_request_bytes_total", "", engine.getBytesSent());
+        Hedger hedger = engine.getHedger();
+        if (hedger != null) {
+            header(sb, "enroller_hedges_total", "counter", "Slow requests sent again.");
+            sample(sb, "enroller_hedges_total", "", hedger.getSent());
+            header(sb, "enroller_hedge_wins_total", "counter", "Hedges answered before the first " +
+                    "request.");
+            sample(sb, "enroller_hedge_wins_total", "", hedger.getWins());
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String label(Result result) {
+        return "result=\"" + result.name().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double
+                .toString(value);
+    }
+}
@@ -0,0 +1,84 @@
+package app;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * This class reads the options of the command line tools. The options are given as
+ * <tt>--key=value</tt> arguments, or as <tt>key=value</tt> lines of a properties file given by
+ * <tt>--config=file</tt>. The arguments win over the file.
+ */
+public class Options {
+
+    private final Properties properties = new Properties();
+
+    /**
+     * Read the options.
+     * @param args the arguments given by JVM
+     * @throws IllegalArgumentException if an argument is not in the form of <tt>--key=value</tt>
+     * @throws IOException              if the config file cannot be read
+     */
+    public Options(String[] args) throws IOException {
+        Properties arguments = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq == -1) throw new IllegalArgumentException("Unknown argument: " +
+                    arg);
+            arguments.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        String config = arguments.getProperty("config");
+        if (config != null) {
+            try (InputStream in = new FileInputStream(config)) {
+                properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        }
+        properties.putAll(arguments);
+    }
+
+    /**
+     * Get an option.
+     * @param key the key
+     * @return the value, or <tt>null</tt> if it is not given
+     */
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    /**
+     * Get an option.
+     * @param key          the key
+     * @param defaultValue the value used if it is not given
+     * @return the value
+     */
+    public String get(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    /**
+     * Get an integer option.
+     * @param key          the key
+     * @param defaultValue the value used if it is not given
+     * @return the value
+     * @throws NumberFormatException if the value is not an integer
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Get an option that must be given.
+     * @param key the key
+     * @return the value
+     * @throws IllegalArgumentException if it is not given
+     */
+    public String require(String key) {
+        String value = properties.getProperty(key);
+        if (value == null) throw new IllegalArgumentException("Missing option: --" + key);
+        return value;
+    }
+}
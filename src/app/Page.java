@@ -0,0 +1,265 @@
+package app;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The parts of a page of CGU's website that the enroller needs: the forms with their fields, the
+ * links, and the rows of the course table <tt>_ctl2_myGrid</tt>. A page is read by {@link HtmlScanner}
+ * in one pass and the rest of the markup is thrown away.</p>
+ */
+class Page {
+
+    /**
+     * A form of the page.
+     */
+    static class Form {
+        /**
+         * The <tt>action</tt> attribute, not resolved.
+         */
+        final String action;
+        /**
+         * The fields a browser sends when the form is submitted without clicking any button, in the
+         * order of the page.
+         */
+        final Map<String, String> fields = new LinkedHashMap<>();
+        /**
+         * The submit buttons, from name to value.
+         */
+        final Map<String, String> buttons = new LinkedHashMap<>();
+        /**
+         * <tt>true</tt> if the form has any field other than the hidden ones.
+         */
+        boolean visible;
+
+        private Form(String action) {
+            this.action = action;
+        }
+
+        /**
+         * Get the url the form is submitted to.
+         * @param base the url of the page
+         * @return the url the form is submitted to
+         */
+        URL resolve(URL base) throws MalformedURLException {
+            return action == null || action.isEmpty() ? base : new URL(base, action);
+        }
+    }
+
+    private static final String GRID = "_ctl2_myGrid";
+    /**
+     * Marks a <tt>br</tt> tag in the text of a cell until the cell ends.
+     */
+    private static final char BR = '\u0000';
+
+    /**
+     * The forms of the page.
+     */
+    final List<Form> forms = new ArrayList<>();
+    /**
+     * The <tt>href</tt> of every link of the page.
+     */
+    final List<String> links = new ArrayList<>();
+    /**
+     * The rows of <tt>_ctl2_myGrid</tt>, each row is a list of the texts of its cells. A <tt>br</tt>
+     * tag in a cell becomes a <tt>'\n'</tt>. It is empty if the page has no such table.
+     */
+    final List<List<String>> grid = new ArrayList<>();
+
+    private Page() {
+    }
+
+    /**
+     * Read a page.
+     * @param in      the page, it is not closed
+     * @param charset the charset of the page
+     * @return the page
+     */
+    static Page parse(InputStream in, Charset charset) throws IOException {
+        return parse(new BufferedReader(new InputStreamReader(in, charset)));
+    }
+
+    /**
+     * Read a page.
+     * @param html the page
+     * @return the page
+     */
+    static Page parse(String html) {
+        try {
+            return parse(new StringReader(html));
+        } catch (IOException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+    }
+
+    private static Page parse(Reader in) throws IOException {
+        final Page page = new Page();
+        HtmlScanner.scan(in, new HtmlScanner.Handler() {
+            private StringBuilder cell;
+            private Form form;
+            private int gridDepth;
+            private List<String> row;
+            private String select;
+            private String firstOption;
+            private boolean selected;
+            private int tableDepth;
+
+            @Override
+            public void endTag(String name) {
+                switch (name) {
+                case "form":
+                    form = null;
+                    break;
+                case "select":
+                    if (form != null && select != null && !selected && firstOption != null) form.fields
+                            .put(select, firstOption);
+                    select = null;
+                    break;
+                case "table":
+                    if (tableDepth-- == gridDepth) gridDepth = 0;
+                    break;
+                case "td":
+                case "th":
+                    if (inGrid() && row != null && cell != null) {
+                        row.add(cellText(cell));
+                        cell = null;
+                    }
+                    break;
+                case "tr":
+                    if (inGrid() && row != null) {
+                        page.grid.add(Collections.unmodifiableList(row));
+                        row = null;
+                    }
+                    break;
+                }
+            }
+
+            @Override
+            public void startTag(String name, Map<String, String> attributes) {
+                switch (name) {
+                case "a":
+                    if (attributes.containsKey("href")) page.links.add(attributes.get("href"));
+                    break;
+                case "form":
+                    form = new Form(attributes.get("action"));
+                    page.forms.add(form);
+                    break;
+                case "input":
+                    input(attributes);
+                    break;
+                case "select":
+                    select = attributes.get("name");
+                    firstOption = null;
+                    selected = false;
+                    if (form != null) form.visible = true;
+                    break;
+                case "option":
+                    if (form == null || select == null) break;
+                    String value = attributes.get("value");
+                    if (value == null) value = "";
+                    if (firstOption == null) firstOption = value;
+                    if (attributes.containsKey("selected") && !selected) {
+                        selected = true;
+                        form.fields.put(select, value);
+                    }
+                    break;
+                case "table":
+                    tableDepth++;
+                    if (GRID.equals(attributes.get("id"))) gridDepth = tableDepth;
+                    break;
+                case "tr":
+                    if (inGrid()) row = new ArrayList<>();
+                    break;
+                case "td":
+                case "th":
+                    if (inGrid()) cell = new StringBuilder();
+                    break;
+                case "br":
+                    if (cell != null) cell.append(BR);
+                    break;
+                }
+            }
+
+            @Override
+            public void text(String text) {
+                if (cell != null && tableDepth >= gridDepth) cell.append(text);
+            }
+
+            private void input(Map<String, String> attributes) {
+                String name = attributes.get("name");
+                if (form == null || name == null) return;
+                String type = attributes.get("type");
+                type = type == null ? "text" : type.toLowerCase();
+                String value = attributes.get("value");
+                if (value == null) value = "";
+                switch (type) {
+                case "hidden":
+                    form.fields.put(name, value);
+                    return;
+                case "submit":
+                case "image":
+                    form.buttons.put(name, value);
+                    break;
+                case "checkbox":
+                case "radio":
+                    if (attributes.containsKey("checked")) form.fields.put(name, value);
+                    break;
+                case "button":
+                case "reset":
+                case "file":
+                    break;
+                default:
+                    form.fields.put(name, value);
+                }
+                form.visible = true;
+            }
+
+            /**
+             * Check if the scanner is in the grid but not in a table nested in it.
+             */
+            private boolean inGrid() {
+                return gridDepth != 0 && tableDepth == gridDepth;
+            }
+        });
+        return page;
+    }
+
+    /**
+     * Collapse the white spaces of a cell like a browser does and put a <tt>'\n'</tt> for each line
+     * broken by <tt>br</tt>. Empty lines are dropped.
+     */
+    private static String cellText(StringBuilder cell) {
+        StringBuilder sb = new StringBuilder(cell.length());
+        for (String line : cell.toString().split(String.valueOf(BR))) {
+            line = line.replaceAll("\\s+", " ").trim();
+            if (line.isEmpty()) continue;
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the first form that has a field or a button of the given name.
+     * @param field the name of the field
+     * @return the form, or <tt>null</tt> if there is none
+     */
+    Form findForm(String field) {
+        for (Form form : forms) {
+            if (form.fields.containsKey(field) || form.buttons.containsKey(field)) return form;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+package app;
+
+import notify.Result;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This class keeps the request bodies of an {@link Engine} up to date. The server changes the
+ * <tt>__VIEWSTATE</tt> of the course page from time to time, and every request with the old one fails.
+ * The refresher reads the form of the course page again when the failures of a course spike, or when the
+ * body is older than a time to live, and swaps the body by {@link Request#refresh()}, with the session
+ * of the account of the course. The worker threads are never stopped or blocked.</p> <p>It looks at the
+ * counters of the courses every {@link #PERIOD} ms on its own thread, and reads the pages on a few other
+ * threads, so a slow page of one course does not hold up the checks or the pages of the other courses. A
+ * course is not read again while its page is being read.</p>
+ */
+class Refresher {
+
+    /**
+     * The default time a body is used for before it is read again, in ms.
+     */
+    static final long DEFAULT_TTL = 10 * 60 * 1000;
+    /**
+     * The interval between two checks in ms.
+     */
+    private static final long PERIOD = 250;
+    /**
+     * The min count of results since the last check to decide if the failures spike.
+     */
+    private static final int MIN_ATTEMPTS = 8;
+    /**
+     * The min rate of failed requests which is a spike.
+     */
+    private static final double SPIKE = 0.5;
+    /**
+     * The min interval between two refreshes of a course caused by failures, so that a server which is
+     * down is not asked for the page again and again.
+     */
+    private static final long COOLDOWN = 2000;
+    /**
+     * The count of threads which read the pages.
+     */
+    private static final int THREADS = 2;
+
+    private final List<Enrollment> enrollments = new ArrayList<>();
+    private final Engine.Listener listener;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon
+            ("Refresher"));
+    private final ExecutorService fetcher = Executors.newFixedThreadPool(THREADS, daemon("Refresher fetch"));
+    private final long ttl;
+    /**
+     * The count of failed requests and all of the requests of each course at the last check.
+     */
+    private long[] lastFails = new long[0];
+    private long[] lastTotals = new long[0];
+    /**
+     * The time of the last refresh of each course.
+     */
+    private long[] refreshed = new long[0];
+    /**
+     * Whether the page of each course is being read.
+     */
+    private boolean[] refreshing = new boolean[0];
+
+    /**
+     * Create a refresher. It does not start until {@link #start()} is called.
+     * @param enrollments the courses
+     * @param listener    receives the messages
+     * @param ttl         the time a body is used for before it is read again, in ms
+     */
+    Refresher(List<Enrollment> enrollments, Engine.Listener listener, long ttl) {
+        this.listener = listener;
+        this.ttl = ttl;
+        add(enrollments);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static long total(Counter counter) {
+        long total = 0;
+        for (Result result : Result.values()) total += counter.get(result);
+        return total;
+    }
+
+    /**
+     * Add the courses of the accounts which join while the refresher runs. Their bodies have just been
+     * read.
+     * @param added the courses
+     */
+    synchronized void add(List<Enrollment> added) {
+        int size = enrollments.size() + added.size();
+        lastFails = Arrays.copyOf(lastFails, size);
+        lastTotals = Arrays.copyOf(lastTotals, size);
+        refreshed = Arrays.copyOf(refreshed, size);
+        refreshing = Arrays.copyOf(refreshing, size);
+        Arrays.fill(refreshed, enrollments.size(), size, System.currentTimeMillis());
+        enrollments.addAll(added);
+    }
+
+    /**
+     * Stop the refresher. A refresh in progress is not interrupted, but its body is not used.
+     */
+    void close() {
+        timer.shutdownNow();
+        fetcher.shutdown();
+    }
+
+    /**
+     * Start the refresher.
+     */
+    synchronized void start() {
+        Arrays.fill(refreshed, System.currentTimeMillis());
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                //丟出例外的話之後就不會再檢查了
+                listener.onMessage("表單檢查失敗：" + e);
+            }
+        }, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void check() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < enrollments.size(); i++) {
+            Enrollment enrollment = enrollments.get(i);
+            if (enrollment.isFinished()) continue;
+            long fails = enrollment.counter.get(Result.FAIL);
+            long total = total(enrollment.counter);
+            long attempts = total - lastTotals[i];
+            boolean spike = attempts >= MIN_ATTEMPTS && fails - lastFails[i] >= attempts * SPIKE;
+            if (attempts >= MIN_ATTEMPTS) {
+                lastFails[i] = fails;
+                lastTotals[i] = total;
+            }
+            if (spike && now - refreshed[i] >= COOLDOWN) refresh(i, "錯誤率過高");
+            else if (now - refreshed[i] >= ttl) refresh(i, "定期更新");
+        }
+    }
+
+    /**
+     * Read the page of a course on a thread of {@link #fetcher}. It returns at once.
+     */
+    private void refresh(int i, String reason) {
+        if (refreshing[i]) return;
+        Enrollment enrollment = enrollments.get(i);
+        refreshed[i] = System.currentTimeMillis();
+        refreshing[i] = true;
+        try {
+            fetcher.execute(() -> fetch(i, enrollment, reason));
+        } catch (RejectedExecutionException e) {
+            //The refresher is closed.
+            refreshing[i] = false;
+        }
+    }
+
+    private void fetch(int i, Enrollment enrollment, String reason) {
+        Account account = enrollment.account;
+        String id = enrollment.course.id;
+        String name = account.name.isEmpty() ? id : account.name + " " + id;
+        try {
+            if (enrollment.request.refresh()) listener.onMessage(name + " 的表單已更新（" + reason + "）。");
+        } catch (IOException | RuntimeException e) {
+            //例外不能讓執行緒結束，下次檢查還會再試；引擎停止時連線池關閉造成的失敗不用說
+            if (!fetcher.isShutdown()) listener.onMessage(name + " 的表單更新失敗：" + e);
+        } finally {
+            synchronized (this) {
+                refreshing[i] = false;
+            }
+        }
+    }
+}
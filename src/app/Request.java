@@ -1,53 +1,84 @@
 package app;
 import cgu.Course;
-import com.gargoylesoftware.htmlunit.html.HtmlInput;
-import com.gargoylesoftware.htmlunit.html.HtmlPage;
-import com.gargoylesoftware.htmlunit.util.Cookie;
 import notify.Result;
+import notify.SessionExpiredException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 
 import java.io.*;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * This class is rearded to the final step to enroll the class. This class creates a real connection to
- * CGU's server and reads the response contents.
+ * <p>This class is rearded to the final step to enroll the class. This class creates a real connection
+ * to CGU's server and reads the response contents. The connections are borrowed from a shared {@link
+ * HttpPool} and the headers with the cookies from a shared {@link Session}. The body is encoded once by
+ * the constructor, so sending a request does not build or encode any <tt>String</tt>.</p> <p>The body is
+ * built from the fields of the form of the course page, such as <tt>__VIEWSTATE</tt>, which the server
+ * changes from time to time. {@link #refresh()} reads the fields again and swaps the body atomically, so
+ * the worker threads never wait for it.</p> <p>The response may be compressed by <tt>gzip</tt> or
+ * <tt>deflate</tt>, which the headers of the session accept. The worker threads read the compressed
+ * bytes and let {@link ResultClassifier} inflate them, so the bytes on the wire are counted. The request
+ * can also be sent without blocking by an {@link AsyncPool}.</p>
+ * @see Refresher
  */
 public class Request {
 
-    private static final String DP1 = "__EVENTTARGET=&__EVENTARGUMENT=&__VIEWSTATE=";
-    private static final String DP2 = "&__VIEWSTATEGENERATOR=C2962417&_ctl1%3AtermsList=45&_ctl1" +
-            "%3AdepartmentsList=-1&_ctl1%3AcallID=&_ctl1%3AcourseID=";
-    private static final String DP3 = "&_ctl1%3AInstructorName=&_ctl1%3AcourseName=&_ctl1%3AweekDay=-1" +
-            "" + "" + "&_ctl1%3AbeginSection=-1&_ctl1%3AendSection=-1&_ctl1%3AclassID=-1&_ctl1" +
-            "%3AfieldsList" + "=-1" + "&_ctl2%3AmyGrid%3A_ctl2%3AaddTaking=%E5%8A%A0%E9%81%B8%E8%AA%B2" +
-            "%E7%A8%8B%0AADD";
-    private final String cookies;
+    /**
+     * The field of the add button of the first row of the course table, which is the course searched.
+     */
+    private static final String ADD_TAKING = "_ctl2:myGrid:_ctl2:addTaking";
+    private static final String ADD_TAKING_VALUE = "加選課程\nADD";
+    /**
+     * The status code IIS answers when the login has timed out.
+     */
+    private static final int LOGIN_TIMEOUT = 440;
+    /**
+     * The encoded request body. It is repeatable and is never modified, so all of the worker threads
+     * share it. It is replaced by {@link #refresh()}.
+     */
+    private final AtomicReference<HttpEntity> body = new AtomicReference<>();
     private final Course course;
-    private final String param;
+    private final HttpPool pool;
+    /**
+     * The session of the account of the course. It is only package-visible and final.
+     */
+    final Session session;
+    /**
+     * The uri the request is sent to. It is only package-visible and final.
+     */
+    final URI uri;
+    /**
+     * The bytes of the current body, which is sent by {@link #send(AsyncPool, AsyncPool.Callback)}. It is
+     * replaced with {@link #body}, and is never modified.
+     */
+    private volatile byte[] encoded;
 
     /**
      * Create a <tt>Request</tt> object. This constuctor does not create any connection. A {@link
-     * CguWebClient} object and a {@link Course} object is needed to get proper request contents.
-     * @param client a client that has logged in the student system.
-     * @param course a course who wants to enroll.
+     * Session} object and a {@link Course} object is needed to get proper request contents.
+     * @param session the session of a client that has logged in the student system.
+     * @param course  a course who wants to enroll.
+     * @param pool    the pool to borrow connections from.
      */
-    public Request(CguWebClient client, Course course) throws IOException {
+    Request(Session session, Course course, HttpPool pool) throws IOException {
         try {
             this.course = course;
-            StringBuilder sb = new StringBuilder(500);
-            boolean first = true;
-            for (Cookie c : client.client.getCookies(new URL("https://www.is.cgu.edu.tw/"))) {
-                if (first) first = false;
-                else sb.append("; ");
-                sb.append(c.getName()).append("=").append(c.getValue());
-            }
-            cookies = sb.toString();
-            HtmlPage page = client.client.getPage(course.url);
-            HtmlInput viewState = page.getElementByName("__VIEWSTATE");
-            this.param = DP1 + URLEncoder.encode(viewState.getValueAttribute(), "UTF-8") + DP2 +
-                    course.id + DP3;
+            this.pool = pool;
+            this.session = session;
+            this.uri = course.url.toURI();
+            refresh();
         } catch (IOException e) {
             throw e;
         } catch (Exception e) {
@@ -56,51 +87,125 @@ public class Request {
     }
 
     /**
-     * Get the final result of the submittion.
-     * @param in An inputstream of a connection that has connected to CGU's server.
+     * Build and encode the request body. It is the form of the course page submitted by the add button
+     * of the course, after searching the course in every department.
+     * @param fields   the fields of the form, not URL-encoded
+     * @param courseID the ID of the course
+     * @return the encoded request body
+     */
+    static byte[] encodeBody(Map<String, String> fields, String courseID) throws
+            UnsupportedEncodingException {
+        Map<String, String> form = new LinkedHashMap<>(fields);
+        form.put("_ctl1:departmentsList", "-1");
+        form.put("_ctl1:courseID", courseID);
+        form.put(ADD_TAKING, ADD_TAKING_VALUE);
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        for (Map.Entry<String, String> field : form.entrySet()) {
+            if (sb.length() != 0) sb.append('&');
+            sb.append(URLEncoder.encode(field.getKey(), "UTF-8")).append('=').append(URLEncoder.encode
+                    (field.getValue(), "UTF-8"));
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the final result of the submittion. This method creates a new {@link ResultClassifier} every
+     * time it is called. Worker threads should keep their own classifier and call {@link
+     * ResultClassifier#classify(InputStream, String)} instead, which also inflates a compressed body.
+     * @param in An inputstream of a body which is not compressed.
      * @return the final result of the submittion
      */
     public static Result getResult(InputStream in) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, "utf-8"))) {
-            String readed;
-            while ((readed = br.readLine()) != null) {
-                //System.out.println(readed);
-                if (readed.contains("span id=\"_ctl2_result\"")) {
-                    if (readed.contains("人數上限")) return Result.FULL;
-                    if (readed.contains("目前未開放")) return Result.TIME_INCORRECT;
-                    if (readed.contains("衝堂") || readed.contains("不可重複選修科目代號")) return Result.CONFLICT;
-                    if (readed.contains("你已經")) return Result.SUCCESS;
-                    if (readed.contains("不可重複修讀已修畢之科目")) return Result.REPEAT;
-                    if (readed.contains("學生所屬年級必須等於或高於課程開設年級") || readed.contains("不開放大學部學生選修"))
-                        return Result.GRADE_TOO_LOW;
-                }
-            }
-            return Result.FAIL;
-        }
+        return new ResultClassifier().classify(in);
+    }
+
+    /**
+     * Get the length of the current body.
+     * @return the length in bytes
+     */
+    int getBodyLength() {
+        return encoded.length;
     }
 
     /**
-     * This method creates a real connection to CGU's server and sends the request headers, and then
-     * returns the inputstream of the connection socket. Call {@link #getResult(InputStream)} to get the
-     * final result of the submittion.
-     * @return the inputstream of the connection socket
-     * @see #getResult(InputStream)
-     */
-    public InputStream submit() throws IOException {
-        URLConnection conn = course.url.openConnection();
-        conn.setRequestProperty("Cookie", cookies);
-        conn.setRequestProperty("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9," +
-                "image/webp,ima" + "ge/apng,*/*;q=0.8");
-        conn.setRequestProperty("User-agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
-                "AppleWebKit/537.36 (KH" + "TML, like Gecko) Chrome/60.0.3112.113 Safari/537.36");
-        conn.setRequestProperty("Connection", "Keep-Alive");
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        try (PrintWriter out = new PrintWriter(conn.getOutputStream())) {
-            out.print(param);
-            out.flush();
+     * Build a <tt>POST</tt> of the current body with the headers of the current session. It can be
+     * aborted by another thread while it is being sent by {@link #execute(HttpPost)}.
+     * @return the <tt>POST</tt>
+     */
+    HttpPost prepare() {
+        HttpPost post = new HttpPost(uri);
+        post.setHeaders(session.getHeaders());
+        post.setEntity(body.get());
+        return post;
+    }
+
+    /**
+     * Send a <tt>POST</tt> built by {@link #prepare()}, and return the response without looking at it.
+     * Call {@link #content(CloseableHttpResponse)} to read it.
+     * @param post the <tt>POST</tt>
+     * @return the response
+     */
+    CloseableHttpResponse execute(HttpPost post) throws IOException {
+        return pool.client.execute(post);
+    }
+
+    /**
+     * Get the inputstream of a response got by {@link #execute(HttpPost)}. A compressed body is not
+     * inflated: pass it to {@link ResultClassifier#classify(InputStream, String)} with {@link
+     * #encoding(HttpResponse)}. Closing the inputstream returns the connection to the pool.
+     * @param response the response
+     * @return the inputstream of the response
+     * @throws SessionExpiredException if the session has expired
+     */
+    static InputStream content(CloseableHttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status / 100 == 3 || status == HttpStatus.SC_UNAUTHORIZED || status == LOGIN_TIMEOUT) {
+            response.close();
+            throw new SessionExpiredException(response.getStatusLine().toString());
         }
-        return conn.getInputStream();
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            response.close();
+            throw new IOException("No content: " + response.getStatusLine());
+        }
+        return entity.getContent();
+    }
+
+    /**
+     * Get the content coding of a response got by {@link #execute(HttpPost)}. The inputstream given by
+     * {@link #content(CloseableHttpResponse)} is not inflated, so pass the coding to {@link
+     * ResultClassifier#classify(InputStream, String)}.
+     * @param response the response
+     * @return the value of <tt>Content-Encoding</tt>, or <tt>null</tt> if the body is not encoded
+     */
+    static String encoding(HttpResponse response) {
+        Header header = response.getFirstHeader("Content-Encoding");
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Send the request by a non-blocking pool. This method returns at once, and the result is given to
+     * the callback.
+     * @param pool     the pool
+     * @param callback receives the result
+     */
+    void send(AsyncPool pool, AsyncPool.Callback callback) {
+        pool.send(uri, session.getHeaders(), encoded, callback);
+    }
+
+    /**
+     * Read the fields of the form of the course page again and build a new body. The worker threads
+     * keep sending the old body until the new one is ready. The page is read through the session, which
+     * logs in again if it has expired.
+     * @return <tt>true</tt> if the body is changed
+     * @throws IOException if the page cannot be read, and the old body is kept
+     */
+    synchronized boolean refresh() throws IOException {
+        byte[] bytes = encodeBody(session.getFormFields(course.url), course.id);
+        if (Arrays.equals(bytes, encoded)) return false;
+        encoded = bytes;
+        body.set(new ByteArrayEntity(bytes, ContentType.APPLICATION_FORM_URLENCODED));
+        return true;
     }
 
 }
@@ -0,0 +1,428 @@
+package app;
+
+import notify.Result;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>This class reads the response of an enrolling request and casts it to a {@link Result} object. It
+ * works on the raw UTF-8 bytes, so the response is never decoded to <tt>String</tt>s.</p> <p>The bytes
+ * are pushed in by {@link #feed(byte[], int, int)}, or {@link #feed(ByteBuffer)} by a non-blocking
+ * client. Every pattern is matched in the same pass over the bytes, and the classifier stops as soon
+ * as the <tt>_ctl2_result</tt> span closes. The markup after the span is never looked at. A login form
+ * before the span is read as {@link Result#EXPIRED}.</p> <p>A body compressed by <tt>gzip</tt> or
+ * <tt>deflate</tt> is inflated as it is pushed in, one buffer at a time, so the rest of the compressed
+ * page is never inflated either. The bytes pushed in and the bytes inflated are counted apart.</p>
+ * <p>This class is not thread-safe. Every worker thread should own its own instance and reuse it for
+ * every submittion. Call {@link #end()} once it is no longer used.</p>
+ * @see Request#getResult(InputStream)
+ */
+public class ResultClassifier {
+
+    /**
+     * A byte pattern with its failure table, so that it can be matched one byte at a time.
+     */
+    private static final class Pattern {
+        private final byte[] bytes;
+        private final int[] fail;
+
+        private Pattern(String text) {
+            bytes = text.getBytes(StandardCharsets.UTF_8);
+            fail = new int[bytes.length];
+            for (int i = 1, k = 0; i < bytes.length; i++) {
+                while (k > 0 && bytes[i] != bytes[k]) k = fail[k - 1];
+                if (bytes[i] == bytes[k]) k++;
+                fail[i] = k;
+            }
+        }
+
+        /**
+         * Move one byte forward.
+         * @param state count of bytes matched so far
+         * @param b     the next byte
+         * @return the new count of bytes matched
+         */
+        private int step(int state, byte b) {
+            if (state == bytes.length) state = fail[state - 1];
+            while (state > 0 && b != bytes[state]) state = fail[state - 1];
+            return b == bytes[state] ? state + 1 : state;
+        }
+    }
+
+    private static final Pattern SPAN_OPEN = new Pattern("span id=\"_ctl2_result\"");
+    private static final Pattern SPAN_CLOSE = new Pattern("</span>");
+    /**
+     * The field of the login form, as an attribute, so that the bare name in a script or a text of the
+     * page does not match. A page with it before the result span means the session has expired.
+     */
+    private static final Pattern LOGIN = new Pattern("name=\"Ecom_User_ID\"");
+    /**
+     * The phrases inside the span, never modify it. It is only package-visible, so that {@link WarmUp}
+     * can build pages like the server's.
+     */
+    static final String[] PHRASES = {"人數上限", "目前未開放", "衝堂", "不可重複選修科目代號", "你已經",
+            "不可重複修讀已修畢之科目", "學生所屬年級必須等於或高於課程開設年級", "不開放大學部學生選修"};
+    /**
+     * The patterns of {@link #PHRASES}. If more than one pattern matches, the one with the lower index
+     * wins.
+     */
+    private static final Pattern[] PATTERNS = new Pattern[PHRASES.length];
+    /**
+     * The results of {@link #PATTERNS}, in the same order.
+     */
+    private static final Result[] RESULTS = {Result.FULL, Result.TIME_INCORRECT, Result.CONFLICT, Result
+            .CONFLICT, Result.SUCCESS, Result.REPEAT, Result.GRADE_TOO_LOW, Result.GRADE_TOO_LOW};
+    /**
+     * The size of {@link #buffer}.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    private static final int IDENTITY = 0;
+    private static final int GZIP = 1;
+    private static final int DEFLATE = 2;
+    /**
+     * The stages of reading the header of a compressed body, in the order of a <tt>gzip</tt> header. A
+     * <tt>deflate</tt> body starts at {@link #ZLIB} instead.
+     */
+    private static final int FIXED = 0, EXTRA_LENGTH = 1, EXTRA = 2, NAME = 3, COMMENT = 4, HEADER_CRC = 5,
+            ZLIB = 6, DATA = 7;
+    /**
+     * The flags of the <tt>gzip</tt> header.
+     */
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    static {
+        for (int i = 0; i < PHRASES.length; i++) PATTERNS[i] = new Pattern(PHRASES[i]);
+    }
+
+    /**
+     * The buffer used by {@link #classify(InputStream)}. It is allocated once when it is first needed
+     * and reused. A classifier which is only fed by {@link #feed(ByteBuffer)} never allocates it.
+     */
+    private byte[] buffer;
+    /**
+     * The buffer of the inflated bytes. It is allocated once when the first compressed body is pushed
+     * in, like {@link #inflater}.
+     */
+    private byte[] inflated;
+    /**
+     * Inflates the raw <tt>deflate</tt> data of a compressed body, whose header is read by this class.
+     */
+    private Inflater inflater;
+    /**
+     * The matching states of {@link #PATTERNS}.
+     */
+    private final int[] states = new int[PATTERNS.length];
+    /**
+     * Index of the first pattern found in the span, or <tt>-1</tt>.
+     */
+    private int found;
+    /**
+     * The count of bytes pushed in since the last reset.
+     */
+    private long bytes;
+    /**
+     * The count of bytes inflated since the last reset, or the same as {@link #bytes} if the body is not
+     * compressed.
+     */
+    private long decoded;
+    /**
+     * The content coding of the body, one of {@link #IDENTITY}, {@link #GZIP} and {@link #DEFLATE}.
+     */
+    private int coding;
+    /**
+     * The stage of reading the header of a compressed body, with the count of bytes read in the stage,
+     * the flags and the length of the extra field of a <tt>gzip</tt> header.
+     */
+    private int stage;
+    private int count;
+    private int flags;
+    private int extra;
+    /**
+     * The first byte of a <tt>deflate</tt> body, which is a zlib header if the second byte says so.
+     */
+    private byte first;
+    private boolean inSpan;
+    private int loginState;
+    private Result result;
+    private int spanState;
+
+    public ResultClassifier() {
+        reset();
+    }
+
+    /**
+     * Read the response and cast it to a {@link Result}. The stream is closed once the result span
+     * closes, without reading the rest of the page. Closing the stream drains the few bytes left or
+     * aborts the connection, whichever the connection prefers.
+     * @param in an inputstream of a connection that has connected to CGU's server
+     * @return the final result of the submittion
+     */
+    public Result classify(InputStream in) throws IOException {
+        return classify(in, null);
+    }
+
+    /**
+     * Read a response whose body may be compressed and cast it to a {@link Result}, like {@link
+     * #classify(InputStream)} does. The stream gives the bytes as they are sent, which are inflated here.
+     * @param in       an inputstream of a connection that has connected to CGU's server
+     * @param encoding the value of <tt>Content-Encoding</tt>, or <tt>null</tt> if the body is not encoded
+     * @return the final result of the submittion
+     */
+    public Result classify(InputStream in, String encoding) throws IOException {
+        reset();
+        setEncoding(encoding);
+        if (buffer == null) buffer = new byte[BUFFER_SIZE];
+        try (InputStream stream = in) {
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                if (feed(buffer, 0, n)) break;
+            }
+            return finish();
+        }
+    }
+
+    /**
+     * Push bytes of the response into this classifier.
+     * @param b   the bytes
+     * @param off offset of the first byte
+     * @param len count of bytes
+     * @return <tt>true</tt> if the result is known and no more bytes are needed
+     */
+    public boolean feed(byte[] b, int off, int len) {
+        if (result != null) return true;
+        bytes += len;
+        if (coding == IDENTITY) return match(b, off, len);
+        int end = off + len;
+        if (stage != DATA) off = header(b, off, end);
+        if (result != null) return true;
+        if (off == end || inflater.finished()) return false;
+        return inflate(b, off, end - off);
+    }
+
+    /**
+     * Push bytes of the response into this classifier. The bytes are consumed.
+     * @param content the bytes, from the position to the limit
+     * @return <tt>true</tt> if the result is known and no more bytes are needed
+     */
+    public boolean feed(ByteBuffer content) {
+        if (content.hasArray()) {
+            int length = content.remaining();
+            boolean done = feed(content.array(), content.arrayOffset() + content.position(), length);
+            content.position(content.limit());
+            return done;
+        }
+        if (result != null) return true;
+        if (coding != IDENTITY) {
+            //Inflater 只能讀陣列，先複製到緩衝區
+            if (buffer == null) buffer = new byte[BUFFER_SIZE];
+            while (content.hasRemaining()) {
+                int length = Math.min(content.remaining(), buffer.length);
+                content.get(buffer, 0, length);
+                if (feed(buffer, 0, length)) return true;
+            }
+            return false;
+        }
+        bytes += content.remaining();
+        decoded += content.remaining();
+        while (content.hasRemaining()) {
+            if (step(content.get())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the result once all the bytes have been pushed in.
+     * @return the final result of the submittion, <tt>FAIL</tt> if the result span is not found
+     */
+    public Result finish() {
+        if (result == null) result = found == -1 ? Result.FAIL : RESULTS[found];
+        return result;
+    }
+
+    /**
+     * Get the count of bytes pushed in since the last reset, which is the part of the response read
+     * until the result is known. They are the bytes as sent, so they are compressed if the body is.
+     * @return the count of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the count of bytes inflated since the last reset, or the same as {@link #getBytes()} if the body
+     * is not compressed.
+     * @return the count of bytes
+     */
+    public long getDecodedBytes() {
+        return decoded;
+    }
+
+    /**
+     * Release the native memory of the inflater. The classifier can still be used, and a new inflater is
+     * created when a compressed body is pushed in again.
+     */
+    public void end() {
+        if (inflater == null) return;
+        inflater.end();
+        inflater = null;
+        inflated = null;
+    }
+
+    /**
+     * Clear the states so that this classifier can read another response.
+     */
+    public void reset() {
+        for (int i = 0; i < states.length; i++) states[i] = 0;
+        found = -1;
+        bytes = 0;
+        decoded = 0;
+        coding = IDENTITY;
+        inSpan = false;
+        loginState = 0;
+        result = null;
+        spanState = 0;
+    }
+
+    /**
+     * Set the content coding of the body. Call it after {@link #reset()} and before any byte is pushed
+     * in. A coding which is not known is read as if the body is not encoded.
+     * @param encoding the value of <tt>Content-Encoding</tt>, or <tt>null</tt> if the body is not encoded
+     */
+    public void setEncoding(String encoding) {
+        coding = IDENTITY;
+        if (encoding == null) return;
+        encoding = encoding.trim();
+        if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) coding = GZIP;
+        else if (encoding.equalsIgnoreCase("deflate")) coding = DEFLATE;
+        else return;
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflated = new byte[BUFFER_SIZE];
+        }
+        else inflater.reset();
+        stage = coding == GZIP ? FIXED : ZLIB;
+        count = 0;
+        flags = 0;
+        extra = 0;
+    }
+
+    /**
+     * Read the header of a compressed body.
+     * @return the offset of the first byte after the header, or <tt>end</tt> if the header goes on
+     */
+    private int header(byte[] b, int off, int end) {
+        while (off < end && stage != DATA) {
+            int x = b[off++] & 0xFF;
+            switch (stage) {
+                case FIXED:
+                    if (count == 3) flags = x;
+                    if (++count == 10) advance();
+                    break;
+                case EXTRA_LENGTH:
+                    extra |= x << 8 * count;
+                    if (++count == 2) advance();
+                    break;
+                case EXTRA:
+                    if (++count == extra) advance();
+                    break;
+                case NAME:
+                case COMMENT:
+                    if (x == 0) advance();
+                    break;
+                case HEADER_CRC:
+                    if (++count == 2) advance();
+                    break;
+                case ZLIB:
+                    if (count++ == 0) {
+                        first = (byte) x;
+                        break;
+                    }
+                    stage = DATA;
+                    //沒有 zlib 標頭的 deflate，兩個位元組都是資料
+                    int cmf = first & 0xFF;
+                    if ((cmf & 0x0F) != 8 || (cmf << 8 | x) % 31 != 0) {
+                        byte[] head = {first, (byte) x};
+                        if (inflate(head, 0, 2)) return end;
+                    }
+                    break;
+            }
+        }
+        return off;
+    }
+
+    /**
+     * Move to the next stage of a <tt>gzip</tt> header, skipping the fields its flags leave out.
+     */
+    private void advance() {
+        count = 0;
+        for (stage++; stage < ZLIB; stage++) {
+            if (stage == EXTRA_LENGTH && (flags & FEXTRA) != 0) return;
+            if (stage == EXTRA && (flags & FEXTRA) != 0 && extra > 0) return;
+            if (stage == NAME && (flags & FNAME) != 0) return;
+            if (stage == COMMENT && (flags & FCOMMENT) != 0) return;
+            if (stage == HEADER_CRC && (flags & FHCRC) != 0) return;
+        }
+        stage = DATA;
+    }
+
+    /**
+     * Inflate compressed bytes and match the inflated bytes. Broken data is read as {@link Result#FAIL}.
+     * @return <tt>true</tt> if the result is known and no more bytes are needed
+     */
+    private boolean inflate(byte[] b, int off, int len) {
+        inflater.setInput(b, off, len);
+        try {
+            while (true) {
+                int n = inflater.inflate(inflated);
+                if (n > 0) {
+                    if (match(inflated, 0, n)) return true;
+                }
+                else if (inflater.finished() || inflater.needsInput()) return false;
+                else if (inflater.needsDictionary()) break;
+            }
+        } catch (DataFormatException e) {
+            //壞掉的壓縮資料
+        }
+        result = Result.FAIL;
+        return true;
+    }
+
+    private boolean match(byte[] b, int off, int len) {
+        decoded += len;
+        for (int end = off + len; off < end; off++) {
+            if (step(b[off])) return true;
+        }
+        return false;
+    }
+
+    private boolean step(byte b) {
+        if (!inSpan) {
+            loginState = LOGIN.step(loginState, b);
+            if (loginState == LOGIN.bytes.length) {
+                result = Result.EXPIRED;
+                return true;
+            }
+            spanState = SPAN_OPEN.step(spanState, b);
+            if (spanState == SPAN_OPEN.bytes.length) {
+                inSpan = true;
+                spanState = 0;
+            }
+            return false;
+        }
+        for (int i = 0; i < PATTERNS.length; i++) {
+            states[i] = PATTERNS[i].step(states[i], b);
+            if (states[i] == PATTERNS[i].bytes.length && (found == -1 || i < found)) found = i;
+        }
+        spanState = SPAN_CLOSE.step(spanState, b);
+        if (spanState == SPAN_CLOSE.bytes.length) {
+            finish();
+            return true;
+        }
+        return false;
+    }
+}
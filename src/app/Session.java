@@ -0,0 +1,210 @@
+package app;
+
+import notify.LoginFailException;
+import notify.SessionExpiredException;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * <p>The login session shared by the requests of an {@link Engine}. It owns the request headers with the
+ * cookies of the session, which every {@link Request} sends.</p> <p>When a request finds that the
+ * session has expired, {@link #expired(long)} logs in again by {@link CguWebClient#relogin()} on a
+ * background thread and swaps the headers atomically for all of the requests. Only one login runs at a
+ * time. The worker threads wait for it by {@link #await(long, long)} instead of sending requests which
+ * are sure to fail.</p> <p>Each login has a generation number, so a request that has been sent with the
+ * headers of an old session does not start another login. The pages of the courses are also read through
+ * the session by {@link #getFormFields(URL)}, which logs in again and retries if the server answers the
+ * login page.</p>
+ */
+class Session {
+
+    private static final String ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9," +
+            "image/webp,image/apng,*/*;q=0.8";
+    /**
+     * The content codings the responses may be compressed by. They are inflated by {@link
+     * ResultClassifier} as they are read.
+     */
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) " +
+            "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/60.0.3112.113 Safari/537.36";
+    /**
+     * The min interval in ms between a failed login and the next one, so that a wrong password or a
+     * server which is down is not tried again and again.
+     */
+    private static final long COOLDOWN = 5000;
+    /**
+     * The max time in ms {@link #getFormFields(URL)} waits for a login.
+     */
+    private static final long LOGIN_WAIT = 30000;
+
+    final CguWebClient client;
+    private final Engine.Listener listener;
+    /**
+     * Put before the messages, such as the name of the account, or an empty string.
+     */
+    private final String prefix;
+    private boolean closed;
+    /**
+     * The count of failed logins.
+     */
+    private int failures;
+    private volatile long generation;
+    /**
+     * The request headers. Never modify the array, it is replaced as a whole.
+     */
+    private volatile Header[] headers;
+    /**
+     * The time of the last failed login.
+     */
+    private long lastFailure;
+    private boolean logging;
+
+    /**
+     * Create a session with the cookies the client has now.
+     * @param client   a client that has logged in the student system
+     * @param listener receives the messages
+     * @param prefix   put before the messages, such as the name of the account, or an empty string
+     */
+    Session(CguWebClient client, Engine.Listener listener, String prefix) {
+        this.client = client;
+        this.listener = listener;
+        this.prefix = prefix;
+        headers = headers(client);
+    }
+
+    private static Header[] headers(CguWebClient client) {
+        return new Header[]{new BasicHeader("Cookie", client.getCookieHeader()), new BasicHeader("Accept",
+                ACCEPT), new BasicHeader("Accept-Encoding", ACCEPT_ENCODING), new BasicHeader("User-agent",
+                USER_AGENT), new BasicHeader("Connection", "Keep-Alive")};
+    }
+
+    /**
+     * Wait until the session of the given generation is replaced, or the time is out.
+     * @param generation the generation that has expired
+     * @param timeout    the max time to wait in ms
+     */
+    synchronized void await(long generation, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left;
+        while (!closed && this.generation == generation && (left = deadline - System.currentTimeMillis())
+                > 0) wait(left);
+    }
+
+    /**
+     * Stop the session and release the waiting threads. A login in progress goes on, but nobody waits
+     * for it.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Tell the session that a request sent with the headers of a generation has found it expired. A
+     * login is started in the background unless one is running, the generation is old or the last login
+     * has failed too recently.
+     * @param generation the generation got by {@link #getGeneration()} before the request was sent
+     */
+    synchronized void expired(long generation) {
+        if (closed || logging || this.generation != generation) return;
+        if (System.currentTimeMillis() - lastFailure < COOLDOWN) return;
+        logging = true;
+        listener.onMessage(prefix + "登入逾時，重新登入中。");
+        new Thread(this::login, "Session").start();
+    }
+
+    /**
+     * Get the fields of the form of a course page by the client of the session. If the session has
+     * expired and the server answers the login page, the session logs in again like {@link
+     * #expired(long)} and the page is read once more.
+     * @param url url of the page
+     * @return the fields, in the order of the page
+     * @throws IOException if the page has no <tt>__VIEWSTATE</tt>, or the login fails
+     */
+    Map<String, String> getFormFields(URL url) throws IOException {
+        long generation = this.generation;
+        try {
+            return client.getFormFields(url);
+        } catch (SessionExpiredException e) {
+            if (!renew(generation)) throw e;
+        }
+        return client.getFormFields(url);
+    }
+
+    /**
+     * Start a login like {@link #expired(long)} and wait for it.
+     * @return <tt>true</tt> if the session of the generation has been replaced
+     */
+    private synchronized boolean renew(long generation) throws InterruptedIOException {
+        expired(generation);
+        long deadline = System.currentTimeMillis() + LOGIN_WAIT;
+        long left;
+        try {
+            //在冷卻時間內不會開始登入，這時 logging 是 false，不用等
+            while (!closed && logging && this.generation == generation && (left = deadline - System
+                    .currentTimeMillis()) > 0) wait(left);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return this.generation != generation;
+    }
+
+    /**
+     * Get the count of failed logins.
+     * @return the count of failed logins
+     */
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get the generation of the current headers, which is also the count of successful logins.
+     * @return the generation
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get the request headers of the current session.
+     * @return the headers, never modify the array
+     */
+    Header[] getHeaders() {
+        return headers;
+    }
+
+    private void login() {
+        String message;
+        boolean renewed = false;
+        try {
+            String name = client.relogin();
+            if (name == null) message = "重新登入失敗：帳號或密碼錯誤。";
+            else {
+                headers = headers(client);
+                renewed = true;
+                message = "已重新登入【" + name + "】";
+            }
+        } catch (IOException | LoginFailException | RuntimeException e) {
+            //引擎停止後關閉的連線池會丟 IllegalStateException，不能讓執行緒就這樣結束
+            message = "重新登入失敗：" + e.getMessage();
+        }
+        boolean closed;
+        synchronized (this) {
+            if (renewed) generation++;
+            else {
+                lastFailure = System.currentTimeMillis();
+                failures++;
+            }
+            logging = false;
+            closed = this.closed;
+            notifyAll();
+        }
+        if (!closed) listener.onMessage(prefix + message);
+    }
+}
@@ -0,0 +1,32 @@
+package app;
+
+import java.util.Random;
+
+/**
+ * Builds random texts like the <tt>__VIEWSTATE</tt> field of the pages of CGU's website: base64 text of
+ * a given length. It is used for the pages {@link WarmUp} trains the parse path on, and by the
+ * stand-ins of the server for testing and benchmarking.
+ */
+public final class ViewState {
+
+    /**
+     * The size in chars of the <tt>__VIEWSTATE</tt> the server sends with a course page.
+     */
+    public static final int SIZE = 8192;
+    private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private ViewState() {
+    }
+
+    /**
+     * Get a random <tt>__VIEWSTATE</tt>-like base64 text.
+     * @param random the source of the chars. Pass a seeded one to get the same text every time.
+     * @param length length of the text
+     * @return the text
+     */
+    public static String random(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        return sb.toString();
+    }
+}
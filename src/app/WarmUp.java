@@ -0,0 +1,219 @@
+package app;
+
+import notify.Result;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>This class gets an {@link Engine} ready before the first real request, so that the first requests,
+ * which are the most valuable ones, are not the slowest ones. The connections are opened and checked by
+ * a <tt>HEAD</tt> request each, and the parse path is run on pages like the server's until the JIT
+ * compiler has compiled it.</p> <p>The pages are built from the phrases of {@link ResultClassifier}
+ * around a <tt>__VIEWSTATE</tt> of the size the server sends, and each is read plain, by <tt>gzip</tt>
+ * and by <tt>deflate</tt>, from a stream and from buffers, like the two pools do. The parse path is
+ * trained once for the JVM. An instance counts the connections of one run.</p>
+ * @see Engine#isHot()
+ */
+final class WarmUp {
+
+    /**
+     * The max time in ms to train the parse path.
+     */
+    static final long BUDGET = 3000;
+    /**
+     * The count of times each page is read in a round.
+     */
+    private static final int ROUND = 20;
+    /**
+     * The training stops after this many rounds without getting faster.
+     */
+    private static final int STEADY = 5;
+    /**
+     * The size of the chunks the pages are pushed in by, like the reads of a socket.
+     */
+    private static final int CHUNK = 4096;
+    private static final String[] CODINGS = {null, "gzip", "deflate"};
+
+    /**
+     * The time in ns to read a page once the parse path is trained, or 0 if it has not been trained.
+     */
+    private static volatile long trained;
+    /**
+     * Keeps the results, so that the JIT compiler cannot throw the work away.
+     */
+    private static volatile int sink;
+
+    private final CountDownLatch connected;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * Create the warm-up of a run.
+     * @param connections the count of connections to be opened
+     */
+    WarmUp(int connections) {
+        connected = new CountDownLatch(connections);
+    }
+
+    /**
+     * Check if the parse path has been trained.
+     * @return <tt>true</tt> if it has been trained
+     */
+    static boolean isTrained() {
+        return trained != 0;
+    }
+
+    /**
+     * Read the pages again and again until the time per page stops going down, or the time is out. It
+     * returns at once if the parse path has been trained.
+     * @param budget the max time in ms
+     * @return the time in ns to read a page, or 0 if there was no time to train
+     */
+    static synchronized long train(long budget) {
+        if (trained != 0 || budget <= 0) return trained;
+        List<byte[]> pages = new ArrayList<>();
+        List<String> codings = new ArrayList<>();
+        for (byte[] page : pages()) {
+            for (String coding : CODINGS) {
+                pages.add(encode(page, coding));
+                codings.add(coding);
+            }
+        }
+        ResultClassifier classifier = new ResultClassifier();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+        long best = Long.MAX_VALUE;
+        int steady = 0;
+        int hash = 0;
+        while (steady < STEADY && System.nanoTime() < deadline) {
+            long begin = System.nanoTime();
+            for (int n = 0; n < ROUND; n++) {
+                for (int i = 0; i < pages.size(); i++) {
+                    Result result = (n & 1) == 0 ? read(classifier, pages.get(i), codings.get(i)) : push
+                            (classifier, pages.get(i), codings.get(i));
+                    hash += result.ordinal();
+                }
+            }
+            long perPage = (System.nanoTime() - begin) / (ROUND * pages.size());
+            //快了不到 5% 就當作沒有變快
+            if (perPage < best - best / 20) steady = 0;
+            else steady++;
+            best = Math.min(best, perPage);
+        }
+        sink = hash;
+        trained = Math.max(best, 1);
+        return trained;
+    }
+
+    /**
+     * Open a connection of a pool by a <tt>HEAD</tt> request, which also checks that the server answers.
+     * It is called by each worker thread.
+     * @param pool the pool
+     * @param uri  a page of the server
+     */
+    void connect(HttpPool pool, URI uri) {
+        try {
+            pool.head(uri, "Date");
+            opened.incrementAndGet();
+        } catch (IOException | IllegalStateException e) {
+            //The connection is opened by the first request instead.
+        } finally {
+            connected.countDown();
+        }
+    }
+
+    /**
+     * Open connections of a non-blocking pool by <tt>HEAD</tt> requests. This method returns at once.
+     * @param pool  the pool
+     * @param uri   a page of the server
+     * @param count the count of connections
+     */
+    void connect(AsyncPool pool, URI uri, int count) {
+        for (int n = 0; n < count; n++) {
+            pool.warm(uri, status -> {
+                if (status != 0) opened.incrementAndGet();
+                connected.countDown();
+            });
+        }
+    }
+
+    /**
+     * Wait until every connection is opened or has failed, or the time is out.
+     * @param timeout the max time to wait in ms
+     * @return the count of connections opened
+     */
+    int await(long timeout) throws InterruptedException {
+        if (timeout > 0) connected.await(timeout, TimeUnit.MILLISECONDS);
+        return opened.get();
+    }
+
+    /**
+     * Build a page for each phrase, a page with the login form and a page without the result span.
+     */
+    private static List<byte[]> pages() {
+        String state = ViewState.random(ThreadLocalRandom.current(), ViewState.SIZE);
+        String head = "<html><head><title>長庚大學</title></head><body><form name=\"Form1\" method=\"post\" " +
+                "action=\"DesktopDefault.aspx?tabindex=1&amp;tabid=61\">\r\n<input type=\"hidden\" name=" +
+                "\"__VIEWSTATE\" value=\"" + state + "\" />\r\n<table id=\"_ctl2_myGrid\">";
+        String tail = "</table></form></body></html>";
+        List<String> bodies = new ArrayList<>();
+        for (String phrase : ResultClassifier.PHRASES) {
+            bodies.add(head + "<tr><td><span id=\"_ctl2_result\"><font color=\"Red\">" + phrase +
+                    "</font></span></td></tr>" + tail);
+        }
+        bodies.add(head + "<input name=\"Ecom_User_ID\" type=\"text\" />" + tail);
+        bodies.add(head + tail);
+        List<byte[]> pages = new ArrayList<>();
+        for (String body : bodies) pages.add(body.getBytes(StandardCharsets.UTF_8));
+        return pages;
+    }
+
+    private static byte[] encode(byte[] page, String coding) {
+        if (coding == null) return page;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(page.length);
+        try (OutputStream out = coding.equals("gzip") ? new GZIPOutputStream(buffer) : new
+                DeflaterOutputStream(buffer)) {
+            out.write(page);
+        } catch (IOException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Read a page from a stream, like a worker thread does.
+     */
+    private static Result read(ResultClassifier classifier, byte[] page, String coding) {
+        try {
+            return classifier.classify(new ByteArrayInputStream(page), coding);
+        } catch (IOException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+    }
+
+    /**
+     * Push a page in chunks, like {@link AsyncPool} does.
+     */
+    private static Result push(ResultClassifier classifier, byte[] page, String coding) {
+        classifier.reset();
+        classifier.setEncoding(coding);
+        ByteBuffer buffer = ByteBuffer.wrap(page);
+        for (int off = 0; off < page.length; off += CHUNK) {
+            buffer.limit(Math.min(page.length, off + CHUNK)).position(off);
+            if (classifier.feed(buffer)) break;
+        }
+        return classifier.finish();
+    }
+}
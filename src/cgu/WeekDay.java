@@ -28,6 +28,22 @@ public enum WeekDay {
      */
     SUN;
 
+    /**
+     * Find the week day in a cell of the course table, such as <tt>Mon 3~4</tt>.
+     * @param text the text of the cell
+     * @return the week day, or <tt>null</tt> if none is found
+     */
+    public static WeekDay parse(String text) {
+        if (text.contains("Mon")) return MON;
+        if (text.contains("Tue")) return TUE;
+        if (text.contains("Wed")) return WED;
+        if (text.contains("Thu")) return THU;
+        if (text.contains("Fri")) return FRI;
+        if (text.contains("Sat")) return SAT;
+        if (text.contains("Sun")) return SUN;
+        return null;
+    }
+
     @Override
     public String toString() {
         switch (this) {
@@ -0,0 +1,437 @@
+package mock;
+
+import app.ViewState;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>A local stand-in of CGU's student system, used to measure the enroller without touching the real
+ * server. It serves the same pages the enroller reads: the portal page with the login link, the login
+ * form, the class searching page with the <tt>_ctl2_myGrid</tt> table and the enrolling request which
+ * answers with the <tt>_ctl2_result</tt> span.</p> <p>The latency, the slow responses, the seats of the
+ * courses, the time enrolling opens and the error rate can be changed while the server is running, and
+ * the sessions can be expired. The pages can be compressed like IIS does, for the clients which accept
+ * it. All of the courses have IDs from {@link #FIRST_COURSE} on.</p> <p>Remember to close the server if
+ * it is not used. Call {@link #close()} method.</p>
+ * @see LoadDriver
+ */
+public class FakePortal implements Closeable {
+
+    /**
+     * The ID of the first course.
+     */
+    public static final int FIRST_COURSE = 1000;
+    private static final String COOKIE = "ASP.NET_SessionId";
+    private static final String LOGIN = "/portal/Login.aspx";
+    private static final String PORTAL = "/portal/DesktopDefault.aspx";
+    private static final String SEARCH = "tabid=61";
+    private static final String[] DAYS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+
+    static {
+        //Otherwise Nagle's algorithm adds about 40 ms to every response of the JDK server.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Map<String, String[]> accounts = new ConcurrentHashMap<>();
+    private final int courses;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, AtomicInteger> seats = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    /**
+     * The logged in sessions, from session ID to student ID.
+     */
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+    /**
+     * The courses each student has enrolled.
+     */
+    private final Map<String, Set<String>> taken = new ConcurrentHashMap<>();
+    /**
+     * The content coding of the pages, <tt>gzip</tt> or <tt>deflate</tt>, or <tt>null</tt> for none.
+     */
+    private volatile String compression;
+    private volatile double errorRate;
+    private volatile int jitter;
+    private volatile int latency;
+    private volatile int stall;
+    private volatile double stragglers;
+    private volatile long openTime;
+    private volatile String viewState = newViewState();
+
+    /**
+     * Start a server on a free port of the loopback address.
+     * @param courses count of courses
+     */
+    public FakePortal(int courses) throws IOException {
+        this(0, courses);
+    }
+
+    /**
+     * Start a server on the loopback address.
+     * @param port    the port, or 0 for a free port
+     * @param courses count of courses
+     */
+    public FakePortal(int port, int courses) throws IOException {
+        this.courses = courses;
+        setSeats(1);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static String courseName(int index) {
+        return "通識課程" + index;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+    }
+
+    private static String newViewState() {
+        return ViewState.random(ThreadLocalRandom.current(), ViewState.SIZE);
+    }
+
+    private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+        Map<String, String> map = new HashMap<>();
+        if (form == null || form.isEmpty()) return map;
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq == -1) map.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else map.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair
+                    .substring(eq + 1), "UTF-8"));
+        }
+        return map;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private void send(HttpExchange exchange, int status, String html) throws IOException {
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        String coding = compression;
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (coding != null && accept != null && accept.contains(coding)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4);
+            try (OutputStream out = coding.equals("gzip") ? new GZIPOutputStream(buffer) : new
+                    DeflaterOutputStream(buffer)) {
+                out.write(bytes);
+            }
+            bytes = buffer.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", coding);
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void redirect(HttpExchange exchange, String location) throws IOException {
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    /**
+     * Add an account who can log in.
+     * @param studentId the student's ID
+     * @param password  the password
+     * @param name      the student's name shown after logging in
+     */
+    public void addAccount(String studentId, String password, String name) {
+        accounts.put(studentId, new String[]{password, name});
+    }
+
+    /**
+     * Stop the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Log out every student, like the real server does when the sessions time out. The requests with
+     * the old cookies are redirected to the login page.
+     */
+    public void expireSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * Get the url of the class searching page.
+     * @return the url of the class searching page
+     */
+    public URL getSearchClass() {
+        return url(PORTAL + "?tabindex=1&" + SEARCH);
+    }
+
+    /**
+     * Get the url of the student system.
+     * @return the url of the student system
+     */
+    public URL getStudentSystem() {
+        return url(PORTAL);
+    }
+
+    /**
+     * Compress the pages for the clients which accept the coding.
+     * @param compression <tt>gzip</tt>, <tt>deflate</tt>, or <tt>null</tt> for no compression
+     */
+    public void setCompression(String compression) {
+        if (compression != null && !compression.equals("gzip") && !compression.equals("deflate")) {
+            throw new IllegalArgumentException("compression: " + compression);
+        }
+        this.compression = compression;
+    }
+
+    /**
+     * Make a part of the requests fail. A failed request gets either a status 500 or a page without the
+     * result span.
+     * @param errorRate the rate of failed requests, from 0 to 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Set the time every response is delayed.
+     * @param latency the fixed delay in ms
+     * @param jitter  the max random delay added to <tt>latency</tt> in ms
+     */
+    public void setLatency(int latency, int jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Make a part of the responses much slower than the others, like a real server does now and then.
+     * @param stragglers the rate of slow responses, from 0 to 1
+     * @param stall      the time in ms added to the delay of a slow response
+     */
+    public void setStragglers(double stragglers, int stall) {
+        this.stragglers = stragglers;
+        this.stall = stall;
+    }
+
+    /**
+     * Set the time enrolling opens. Before this time every enrolling request gets "目前未開放".
+     * @param openTime the time in ms since the epoch
+     */
+    public void setOpenTime(long openTime) {
+        this.openTime = openTime;
+    }
+
+    /**
+     * Set the count of empty seats of every course.
+     * @param n the count of empty seats
+     */
+    public void setSeats(int n) {
+        for (int i = 0; i < courses; i++) seats.put(String.valueOf(FIRST_COURSE + i), new AtomicInteger
+                (n));
+    }
+
+    /**
+     * Change the <tt>__VIEWSTATE</tt>, like the real server does from time to time. The enrolling
+     * requests with the old one fail.
+     */
+    public void rotateViewState() {
+        viewState = newViewState();
+    }
+
+    private String enroll(String studentId, Map<String, String> form) {
+        if (!viewState.equals(form.get("__VIEWSTATE"))) return page("", "");
+        String courseID = form.get("_ctl1:courseID");
+        AtomicInteger left = courseID == null ? null : seats.get(courseID);
+        if (left == null) return page("", "");
+        String message;
+        Set<String> mine = taken.computeIfAbsent(studentId, k -> ConcurrentHashMap.newKeySet());
+        if (System.currentTimeMillis() < openTime) message = "目前未開放選課";
+        else if (mine.contains(courseID)) message = "不可重複選修科目代號";
+        else if (left.getAndDecrement() > 0) {
+            mine.add(courseID);
+            message = "你已經加選本科目";
+        }
+        else {
+            left.incrementAndGet();
+            message = "本課程已達人數上限";
+        }
+        return page(courseID, "<span id=\"_ctl2_result\" style=\"color:Red;\">" + message + "</span>");
+    }
+
+    private void grid(StringBuilder sb, String courseID) {
+        sb.append("<table cellspacing=\"0\" rules=\"all\" border=\"1\" id=\"_ctl2_myGrid\">\r\n");
+        sb.append("<tr><td>加選</td><td>開課序號</td><td>系所</td><td>學分</td><td>必選修</td>")
+                .append("<td>課程名稱</td><td>教師</td><td>人數</td><td>時間</td></tr>\r\n");
+        for (int i = 0, row = 2; i < courses; i++) {
+            String id = String.valueOf(FIRST_COURSE + i);
+            if (courseID != null && !courseID.equals(id)) continue;
+            sb.append("<tr><td><input type=\"submit\" name=\"_ctl2:myGrid:_ctl").append(row++)
+                    .append(":addTaking\" value=\"加選課程\nADD\" /></td>")
+                    .append("<td nowrap=\"nowrap\" align=\"Center\" valign=\"Middle\">\r\n").append(id)
+                    .append("<BR></td><td>通識教育中心</td><td>2</td><td>選修</td><td>")
+                    .append(courseName(i)).append("\r\n<br>General Course ").append(i)
+                    .append("</td><td>教師").append(i).append("</td><td>").append(seats.get(id).get())
+                    .append("</td><td>").append(DAYS[i % DAYS.length]).append(" 3~4</td></tr>\r\n");
+        }
+        sb.append("</table>\r\n");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            int delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+            if (stragglers > 0 && ThreadLocalRandom.current().nextDouble() < stragglers) delay += stall;
+            if (delay > 0) Thread.sleep(delay);
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            String session = sessionOf(exchange);
+            String studentId = session == null ? null : sessions.get(session);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                //Otherwise the JDK server resets the connection instead of keeping it alive.
+                exchange.getRequestBody().close();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            boolean post = "POST".equals(exchange.getRequestMethod());
+            Map<String, String> form = post ? parseForm(readBody(exchange.getRequestBody())) : new
+                    HashMap<>();
+            if (path.equals(LOGIN)) {
+                if (!post) send(exchange, 200, loginPage(false));
+                else login(exchange, form);
+            }
+            else if (path.equals(PORTAL) && query != null && query.contains(SEARCH)) {
+                if (studentId == null) redirect(exchange, LOGIN);
+                else if (form.containsKey("_ctl2:myGrid:_ctl2:addTaking")) {
+                    if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                        if (ThreadLocalRandom.current().nextBoolean()) send(exchange, 500, "Server Error");
+                        else send(exchange, 200, page("", ""));
+                    }
+                    else send(exchange, 200, enroll(studentId, form));
+                }
+                else if (form.containsKey("_ctl1:newSearch")) {
+                    String courseID = form.get("_ctl1:courseID");
+                    send(exchange, 200, page(courseID == null || courseID.isEmpty() ? null : courseID,
+                            ""));
+                }
+                else send(exchange, 200, page("", ""));
+            }
+            else if (path.equals(PORTAL)) send(exchange, 200, portalPage(studentId));
+            else send(exchange, 404, "Not Found");
+        } catch (InterruptedException | IOException e) {
+            //The client has gone away.
+            exchange.close();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            exchange.close();
+        }
+    }
+
+    private void login(HttpExchange exchange, Map<String, String> form) throws IOException {
+        String studentId = form.get("Ecom_User_ID");
+        String[] account = studentId == null ? null : accounts.get(studentId);
+        if (account == null || !account[0].equals(form.get("Ecom_Password"))) {
+            send(exchange, 200, loginPage(true));
+            return;
+        }
+        String session = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        sessions.put(session, studentId);
+        exchange.getResponseHeaders().add("Set-Cookie", COOKIE + "=" + session + "; path=/");
+        redirect(exchange, PORTAL);
+    }
+
+    private String loginPage(boolean failed) {
+        return "<html><head><title>Login</title></head><body>\r\n" + (failed ? "<p>Login failed, " +
+                "please try again.</p>\r\n" : "") + "<form method=\"post\" action=\"" + LOGIN + "\">\r\n" +
+                "<input type=\"text\" name=\"Ecom_User_ID\" />\r\n<input type=\"password\" " +
+                "name=\"Ecom_Password\" />\r\n<button type=\"submit\">Login</button>\r\n</form>\r\n" +
+                "</body></html>";
+    }
+
+    /**
+     * Render the class searching page.
+     * @param courseID the course to show in the grid, <tt>null</tt> for all of the courses or an empty
+     *                 string for no grid
+     * @param result   the result span, or an empty string
+     */
+    private String page(String courseID, String result) {
+        StringBuilder sb = new StringBuilder(64 * 1024);
+        sb.append("<html>\r\n<head><title>長庚大學校務資訊系統</title></head>\r\n<body>\r\n")
+                .append("<form name=\"Form1\" method=\"post\" action=\"DesktopDefault.aspx?tabindex=1&amp;")
+                .append(SEARCH).append("\" id=\"Form1\">\r\n")
+                .append("<input type=\"hidden\" name=\"__EVENTTARGET\" value=\"\" />\r\n")
+                .append("<input type=\"hidden\" name=\"__EVENTARGUMENT\" value=\"\" />\r\n")
+                .append("<input type=\"hidden\" name=\"__VIEWSTATE\" value=\"").append(escape(viewState))
+                .append("\" />\r\n<input type=\"hidden\" name=\"__VIEWSTATEGENERATOR\" value=\"C2962417\" />")
+                .append("\r\n<select name=\"_ctl1:termsList\"><option selected=\"selected\" value=\"45\">")
+                .append("106學年度第1學期</option></select>\r\n")
+                .append("<select name=\"_ctl1:departmentsList\"><option value=\"-1\">全部</option></select>")
+                .append("\r\n<input type=\"text\" name=\"_ctl1:courseID\" />\r\n")
+                .append("<input type=\"submit\" name=\"_ctl1:newSearch\" value=\"查詢\" />\r\n");
+        if (courseID == null || !courseID.isEmpty()) grid(sb, courseID);
+        sb.append(result).append("\r\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("<div class=\"footer\"><a href=\"").append(PORTAL).append("?tabid=").append(i)
+                    .append("\">長庚大學 Chang Gung University</a></div>\r\n");
+        }
+        sb.append("</form>\r\n</body>\r\n</html>\r\n");
+        return sb.toString();
+    }
+
+    private String portalPage(String studentId) {
+        if (studentId == null) {
+            return "<html><body>\r\n<a href=\"" + LOGIN + "\">Login</a>\r\n</body></html>";
+        }
+        return "<html><body>\r\nHello, " + accounts.get(studentId)[1] + "  <span class=Accent>Logout" +
+                "</span>\r\n</body></html>";
+    }
+
+    private String sessionOf(HttpExchange exchange) {
+        String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookies == null) return null;
+        for (String cookie : cookies.split(";")) {
+            cookie = cookie.trim();
+            if (cookie.startsWith(COOKIE + "=")) return cookie.substring(COOKIE.length() + 1);
+        }
+        return null;
+    }
+
+    private URL url(String file) {
+        try {
+            return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(),
+                    file);
+        } catch (MalformedURLException neverHappen) { //Never happens
+            throw new InternalError(neverHappen);
+        }
+    }
+
+}
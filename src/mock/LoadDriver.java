@@ -0,0 +1,181 @@
+package mock;
+
+import app.CguWebClient;
+import app.Engine;
+import app.Enrollment;
+import app.Account;
+import app.AsyncPool;
+import app.Breaker;
+import app.Hedger;
+import app.Metrics;
+import app.Options;
+import cgu.Course;
+import notify.Result;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Run the {@link Engine} against a {@link FakePortal} and report the count of requests per second and
+ * the time to success.</p> <p>Usage: <tt>java mock.LoadDriver [--seconds=10] [--ceiling=16]
+ * [--latency=20] [--jitter=20] [--seats=1] [--errors=0] [--open=2000] [--courses=1] [--rotate=0]
+ * [--expire=0] [--schedule=false] [--stragglers=0] [--stall=1000] [--hedge=0] [--async=false]
+ * [--journal=DIR] [--metrics=PORT] [--accounts=1] [--weights=1] [--rate=0] [--compress=none]</tt>.
+ * <tt>--open</tt> is the time in ms after the start when enrolling opens. <tt>--seats</tt> is the count
+ * of seats of each course freed at that time. <tt>--courses</tt> is the count of courses enrolled at the
+ * same time. <tt>--rotate</tt> is the interval in ms the server changes its <tt>__VIEWSTATE</tt>, or 0
+ * for never. <tt>--expire</tt> is the interval in ms the server logs out every student, or 0 for never.
+ * <tt>--schedule=true</tt> starts the engine at the time enrolling opens, which should be more than 10 s
+ * for the clock to be synchronized first. <tt>--stragglers</tt> is the rate of responses delayed by
+ * another <tt>--stall</tt> ms. <tt>--hedge</tt> is the budget of the hedges (see {@link Hedger}), such
+ * as <tt>0.05</tt>, or 0 for no hedging. <tt>--async=true</tt> sends the requests by an {@link
+ * AsyncPool}. <tt>--journal</tt> is the directory to record every request in. <tt>--metrics</tt> is the
+ * port to serve the figures on (see {@link Metrics}) until the run ends. <tt>--accounts</tt> is the
+ * count of students enrolling the same courses at the same time, and <tt>--weights</tt> their weights
+ * separated by commas, the last one used for the rest (see {@link Account}). <tt>--rate</tt> is the max
+ * count of requests per second of all of them, or 0 for no cap. <tt>--compress</tt> is the coding the
+ * server compresses the pages by, <tt>gzip</tt>, <tt>deflate</tt> or <tt>none</tt>.</p>
+ */
+public class LoadDriver {
+
+    private static final String STUDENT_ID = "B0000000";
+    private static final String PASSWORD = "password";
+
+    private LoadDriver() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Options options = new Options(args);
+        try (FakePortal portal = new FakePortal(100)) {
+            int students = options.getInt("accounts", 1);
+            for (int n = 0; n < students; n++) portal.addAccount(studentId(n), PASSWORD, "測試學生" + n);
+            portal.setLatency(options.getInt("latency", 20), options.getInt("jitter", 20));
+            portal.setStragglers(Double.parseDouble(options.get("stragglers", "0")), options.getInt("stall",
+                    1000));
+            portal.setErrorRate(Double.parseDouble(options.get("errors", "0")));
+            String compress = options.get("compress", "none");
+            portal.setCompression(compress.equals("none") ? null : compress);
+            portal.setSeats(0);
+            int rotate = options.getInt("rotate", 0);
+            Timer timer = new Timer(true);
+            if (rotate > 0) timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    portal.rotateViewState();
+                }
+            }, rotate, rotate);
+            int expire = options.getInt("expire", 0);
+            if (expire > 0) timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    portal.expireSessions();
+                }
+            }, expire, expire);
+            run(portal, options, students);
+        }
+    }
+
+    private static String studentId(int n) {
+        return n == 0 ? STUDENT_ID : String.format("B%07d", n);
+    }
+
+    private static void run(FakePortal portal, Options options, int students) throws Exception {
+        int seconds = options.getInt("seconds", 10);
+        int seats = options.getInt("seats", 1);
+        int open = options.getInt("open", 2000);
+        int count = options.getInt("courses", 1);
+        boolean schedule = Boolean.parseBoolean(options.get("schedule", "false"));
+        String[] weights = options.get("weights", "1").split(",");
+        List<CguWebClient> clients = new ArrayList<>(students);
+        try {
+            List<Account> accounts = new ArrayList<>(students);
+            for (int n = 0; n < students; n++) {
+                CguWebClient client = new CguWebClient(portal.getStudentSystem(), portal
+                        .getSearchClass(), 4000);
+                clients.add(client);
+                if (client.login(studentId(n), PASSWORD) == null) {
+                    throw new IllegalStateException("Login failed.");
+                }
+                List<Course> courses = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String courseID = String.valueOf(FakePortal.FIRST_COURSE + i);
+                    Course course = client.getCourse(courseID);
+                    if (course == null) throw new IllegalStateException("Course not found: " + courseID);
+                    if (n == 0) System.out.println("Course: " + courseID + " " + course);
+                    courses.add(course);
+                }
+                int weight = Integer.parseInt(weights[Math.min(n, weights.length - 1)].trim());
+                accounts.add(new Account(students == 1 ? "" : studentId(n), client, courses, weight));
+            }
+            final long begin = System.nanoTime();
+            Engine engine = new Engine(options.getInt("ceiling", Engine.DEFAULT_CEILING), new Engine
+                    .Listener() {
+                @Override
+                public void onDone() {
+                }
+
+                @Override
+                public void onFinish(Enrollment enrollment) {
+                    long elapsed = (System.nanoTime() - begin) / 1_000_000;
+                    String name = enrollment.account.name;
+                    System.out.printf("%s%s: %s after %d ms, %d ms after enrolling opens, %d attempts.%n", name
+                            .isEmpty() ? "" : name + " ", enrollment.course.id, enrollment.getResult().name(),
+                            elapsed, elapsed - open, enrollment.counter.get(Result.FULL) + enrollment.counter
+                                    .get(Result.TIME_INCORRECT));
+                }
+
+                @Override
+                public void onMessage(String message) {
+                    System.out.println(message);
+                }
+            });
+            engine.setHedging(Double.parseDouble(options.get("hedge", "0")));
+            engine.setAsync(Boolean.parseBoolean(options.get("async", "false")));
+            engine.setRate(Double.parseDouble(options.get("rate", "0")));
+            if (options.get("journal") != null) engine.setJournal(Paths.get(options.get("journal")));
+            long openTime = System.currentTimeMillis() + open;
+            //未開放前的請求都會得到目前未開放
+            portal.setOpenTime(openTime);
+            portal.setSeats(seats);
+            Metrics metrics = options.get("metrics") == null ? null : new Metrics(engine, options.getInt
+                    ("metrics", 0));
+            if (metrics != null) System.out.printf("Metrics: http://127.0.0.1:%d/metrics%n", metrics
+                    .getPort());
+            engine.start(accounts, schedule ? openTime : 0);
+            boolean done = engine.await(seconds, TimeUnit.SECONDS);
+            engine.stop();
+            if (metrics != null) metrics.close();
+            System.out.println(engine.latency.getSummary());
+            System.out.printf("Limit at the end: %d%n", engine.getLimiter().getLimit());
+            long requests = 0;
+            long decoded = 0;
+            for (Result result : Result.values()) {
+                requests += engine.counter.get(result);
+                decoded += engine.getBytesRead(result, true);
+            }
+            if (requests > 0) System.out.printf("Response bytes per request: %d on the wire, %d inflated.%n",
+                    engine.getBytesRead() / requests, decoded / requests);
+            Hedger hedger = engine.getHedger();
+            if (hedger != null) System.out.printf("Hedges: %d sent, %d won, delay %d ms.%n", hedger.getSent(),
+                    hedger.getWins(), hedger.getDelay());
+            Breaker breaker = engine.getBreaker();
+            if (breaker.getOpens() > 0) System.out.printf("Breaker opened %d times.%n", breaker.getOpens());
+            if (!done) System.out.println("No terminal result for some courses.");
+            if (students == 1) return;
+            for (Enrollment enrollment : engine.getEnrollments()) {
+                long attempts = 0;
+                for (Result result : Result.values()) attempts += enrollment.counter.get(result);
+                Account account = enrollment.account;
+                System.out.printf("%s %s (weight %d): %d requests.%n", account.name, enrollment.course.id,
+                        account.weight, attempts);
+            }
+        } finally {
+            for (CguWebClient client : clients) client.close();
+        }
+    }
+}
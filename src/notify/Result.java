@@ -25,7 +25,20 @@ public enum Result {
      */
     REPEAT,
 
-    GRADE_TOO_LOW;
+    GRADE_TOO_LOW, /**
+     * The session has expired, so the student has to log in again.
+     */
+    EXPIRED;
+
+    /**
+     * Check if this result ends the enrolling process. Sending more requests after such a result is
+     * useless.
+     * @return <tt>true</tt> if this result is <tt>SUCCESS</tt>, <tt>CONFLICT</tt>, <tt>REPEAT</tt> or
+     * <tt>GRADE_TOO_LOW</tt>
+     */
+    public boolean isTerminal() {
+        return this == SUCCESS || this == CONFLICT || this == REPEAT || this == GRADE_TOO_LOW;
+    }
 
     @Override
     public String toString() {
@@ -44,6 +57,8 @@ public enum Result {
             return "不能重複修同一門課。";
         case GRADE_TOO_LOW:
             return "不能跨年級或跨部選修。";
+        case EXPIRED:
+            return "登入逾時。";
         }
         throw new InternalError(); //Never happens;
     }
@@ -0,0 +1,12 @@
+package notify;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown if the server answers an enrolling request as if the student has not logged
+ * in, such as redirecting it to the login page.
+ */
+public class SessionExpiredException extends IOException {
+
+    public SessionExpiredException(String mess) {super(mess);}
+}
@@ -1,25 +1,99 @@
 package swing;
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Timer;
+import java.util.TimerTask;
 
+/**
+ * <p>The message area of the GUI. The messages are added to a bounded {@link LogBuffer} from any
+ * thread in constant time, and shown in batches on the event dispatch thread at most every {@link
+ * #FLUSH} ms. Only the latest lines are kept, so the area never grows and the cost of a message does
+ * not depend on how many have been shown.</p>
+ */
 public class Area extends JTextArea {
+
+    /**
+     * The default max count of lines shown.
+     */
+    public static final int DEFAULT_CAPACITY = 2000;
+    /**
+     * The max delay in ms before a message is shown.
+     */
+    private static final long FLUSH = 100;
+
+    private final LogBuffer buffer;
+    /**
+     * Drains the buffer off the event dispatch thread, so the spill file is never written from it.
+     */
+    private final Timer timer = new Timer("Area", true);
+
     public Area() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the max count of lines shown
+     */
+    public Area(int capacity) {
         super();
+        buffer = new LogBuffer(capacity);
         setLineWrap(true);
         setWrapStyleWord(true);
         setEditable(false);
         setFont(new Font(getFont().getFontName(), Font.PLAIN, 16));
     }
 
+    /**
+     * Add a line. It can be called from any thread.
+     * @param mess the line
+     */
     @Override
-    public synchronized void append(String mess) {
-        super.append(mess);
-        super.append("\n");
-        setCaretPosition(getText().length());
+    public void append(String mess) {
+        if (buffer.add(mess)) timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH);
+    }
+
+    /**
+     * Add an empty line.
+     */
+    public void append() {
+        append("");
+    }
+
+    /**
+     * Also write every line to a rolling file.
+     * @see LogBuffer#setSpill(Path, long)
+     */
+    public void setSpill(Path file, long limit) throws IOException {
+        buffer.setSpill(file, limit);
+    }
+
+    private void flush() {
+        LogBuffer.Batch batch = buffer.drain();
+        if (batch != null) SwingUtilities.invokeLater(() -> show(batch));
     }
 
-    public synchronized void append() {
-        super.append("\n");
-        setCaretPosition(getText().length());
+    private void show(LogBuffer.Batch batch) {
+        Document document = getDocument();
+        try {
+            if (batch.reset) document.remove(0, document.getLength());
+            document.insertString(document.getLength(), batch.text, null);
+            //超過的舊訊息從開頭刪掉，最後一個元素是空的一行
+            Element root = document.getDefaultRootElement();
+            int excess = root.getElementCount() - 1 - buffer.capacity;
+            if (excess > 0) document.remove(0, root.getElement(excess - 1).getEndOffset());
+        } catch (BadLocationException neverHappen) {
+            throw new InternalError(neverHappen);
+        }
+        setCaretPosition(document.getLength());
     }
 }
@@ -0,0 +1,167 @@
+package swing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * <p>A bounded log of lines, kept in a ring buffer. Adding a line takes constant time and never
+ * touches Swing, so any thread can add lines. Only the latest lines are kept, and the older ones are
+ * overwritten.</p> <p>The lines are taken in batches by {@link #drain()}. The lines of each batch can
+ * also be spilled to a rolling file, which is renamed to <tt>FILE.1</tt> when it grows over a limit.</p>
+ * @see Area
+ */
+public class LogBuffer {
+
+    /**
+     * The lines added since the last {@link #drain()}.
+     */
+    public static final class Batch {
+
+        /**
+         * The lines, each one followed by a line break.
+         */
+        public final String text;
+        /**
+         * <tt>true</tt> if more lines than the capacity were added, so {@link #text} is every line kept
+         * and replaces the old ones.
+         */
+        public final boolean reset;
+
+        private Batch(String text, boolean reset) {
+            this.text = text;
+            this.reset = reset;
+        }
+    }
+
+    /**
+     * The max count of lines kept.
+     */
+    public final int capacity;
+    private final String[] lines;
+    private final long[] times;
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS ");
+    /**
+     * Guards the spill file, which is written outside of the lock of the lines.
+     */
+    private final Object spillLock = new Object();
+    /**
+     * The index of the oldest line.
+     */
+    private int head;
+    private int count;
+    /**
+     * The count of lines added since the last drain. It can be larger than the capacity.
+     */
+    private int pending;
+    private Path file;
+    private long limit;
+    private long size;
+    private Writer writer;
+
+    /**
+     * Create a log.
+     * @param capacity the max count of lines kept
+     */
+    public LogBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity: " + capacity);
+        this.capacity = capacity;
+        lines = new String[capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * Add a line. The oldest line is dropped if the log is full.
+     * @param line the line
+     * @return <tt>true</tt> if it is the first line since the last {@link #drain()}
+     */
+    public synchronized boolean add(String line) {
+        int index = (head + count) % capacity;
+        if (count < capacity) count++;
+        else head = (head + 1) % capacity;
+        lines[index] = line;
+        times[index] = System.currentTimeMillis();
+        return ++pending == 1;
+    }
+
+    /**
+     * Take the lines added since the last call, and write them to the spill file if there is one. Only
+     * one thread may call this method at a time.
+     * @return the lines, or <tt>null</tt> if there is none
+     */
+    public Batch drain() {
+        String[] taken;
+        long[] stamps;
+        boolean reset;
+        synchronized (this) {
+            if (pending == 0) return null;
+            reset = pending > count;
+            int n = Math.min(pending, count);
+            taken = new String[n];
+            stamps = new long[n];
+            for (int i = 0, j = (head + count - n) % capacity; i < n; i++, j = (j + 1) % capacity) {
+                taken[i] = lines[j];
+                stamps[i] = times[j];
+            }
+            pending = 0;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : taken) sb.append(line).append('\n');
+        spill(taken, stamps);
+        return new Batch(sb.toString(), reset);
+    }
+
+    /**
+     * Spill every line taken by {@link #drain()} to a file from now on. When the file grows over the
+     * limit, it is renamed to <tt>FILE.1</tt>, replacing the old one, and a new file is started. Lines
+     * dropped because more than the capacity were added between two drains are not spilled.
+     * @param file  the file, appended to if it exists
+     * @param limit the max size of the file in bytes
+     * @throws IOException if the file cannot be opened
+     */
+    public void setSpill(Path file, long limit) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        synchronized (spillLock) {
+            if (writer != null) writer.close();
+            this.limit = limit;
+            this.file = file;
+            size = Files.exists(file) ? Files.size(file) : 0;
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    private void spill(String[] taken, long[] stamps) {
+        synchronized (spillLock) {
+            if (writer == null) return;
+            try {
+                for (int i = 0; i < taken.length; i++) {
+                    String line = format.format(new Date(stamps[i])) + taken[i] + System.lineSeparator();
+                    writer.write(line);
+                    size += line.getBytes(StandardCharsets.UTF_8).length;
+                    if (size > limit) roll();
+                }
+                writer.flush();
+            } catch (IOException e) {
+                //A broken file only stops the spill, the log goes on.
+                e.printStackTrace();
+                writer = null;
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption
+                .REPLACE_EXISTING);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        size = 0;
+    }
+}